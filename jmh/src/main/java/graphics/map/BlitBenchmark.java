@@ -0,0 +1,63 @@
+package graphics.map;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Draws a tile as ImageIO decodes a png, and as the {@link TileDecoder} hands it to the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class BlitBenchmark {
+
+    @Param({ "indexed", "compatible" })
+    public String format;
+
+    private BufferedImage tile;
+    private BufferedImage target;
+    private Graphics2D g;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        BufferedImage indexed = new BufferedImage(MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, BufferedImage.TYPE_BYTE_INDEXED);
+        Graphics2D g = indexed.createGraphics();
+        g.setColor(Color.ORANGE);
+        g.fillRect(0, 0, MapPanel.TILE_SIZE, MapPanel.TILE_SIZE);
+        g.dispose();
+        tile = "indexed".equals(format) ? indexed : TileDecoder.toCompatible(indexed);
+        target = new BufferedImage(MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        this.g = target.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public int blit() {
+        int n = i++;
+        g.drawImage(tile, n & 511, n & 255, null);
+        return target.getRGB(n & 511, n & 255);
+    }
+}
@@ -0,0 +1,31 @@
+package graphics.map;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * What the benchmarks of the map share: the size of the view they paint, and tiles to fill the cache with.
+ * <p>
+ * Run the benchmarks with: ./gradlew :jmh:jmh, a name filter and JMH options go in -PjmhArgs, for
+ * example -PjmhArgs='Projection -f 1 -wi 2'.
+ */
+final class MapBenchmarks {
+
+    static final int WIDTH = 1024, HEIGHT = 768;
+
+    private MapBenchmarks() {
+    }
+
+    /**
+     * @return a tile in one colour, a different one for the next i.
+     */
+    static BufferedImage tile(int i) {
+        BufferedImage image = new BufferedImage(MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(Color.HSBtoRGB(i / 37f, 0.3f, 0.9f)));
+        g.fillRect(0, 0, MapPanel.TILE_SIZE, MapPanel.TILE_SIZE);
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,89 @@
+package graphics.map;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import aircrafts.PassengerPlane;
+import destinations.Destination;
+import routes.Route;
+
+/**
+ * Paints the marker overlay at zoom 6, either markers spread over Norway or routes spread over Europe.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OverlayBenchmark {
+
+    @Param({ "markers", "routes" })
+    public String overlay;
+
+    @Param({ "1000", "10000", "100000" })
+    public int count;
+
+    private MapPanel mapPanel;
+    private BufferedImage target;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(4);
+        mapPanel = new MapPanel(new Point(8282, 4700), 6);
+        mapPanel.setDiskCache(null);
+        mapPanel.setSize(MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT);
+        mapPanel.doLayout();
+        target = new BufferedImage(MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        if ("markers".equals(overlay)) {
+            Marker[] list = new Marker[count];
+            for (int i = 0; i < count; ++i)
+                list[i] = new Marker(4 + random.nextDouble() * 27, 58 + random.nextDouble() * 13, i + 1);
+            mapPanel.setMarkers(list, true);
+        } else {
+            for (int i = 0; i < count; ++i) {
+                Destination start = new Destination("a" + i, 1, 1, 1, -10 + random.nextDouble() * 40, 36 + random.nextDouble() * 34);
+                Destination end = new Destination("b" + i, 1, 1, 1, -10 + random.nextDouble() * 40, 36 + random.nextDouble() * 34);
+                PassengerPlane plane = new PassengerPlane("m", "f", "p", 1, 1, 1, 1, 1, 1, null, 1, 1);
+                mapPanel.put("route" + i, new Route(start, end, 1, plane));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapPanel.getTileLoader().shutdown();
+    }
+
+    @Benchmark
+    public int paintOverlay() {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setBackground(new Color(0, 0, 0, 0));
+            g.clearRect(0, 0, MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT);
+            mapPanel.getOverlayMarkerPanel().paint(g);
+        } finally {
+            g.dispose();
+        }
+        int n = i++ & 511;
+        return target.getRGB(n, n);
+    }
+}
@@ -0,0 +1,69 @@
+package graphics.map;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Paints the tile layer of a 1024x768 view, every visible tile cached, with more tiles cached around the
+ * view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PainterBenchmark {
+
+    @Param({ "12", "200" })
+    public int cached;
+
+    private MapPanel mapPanel;
+    private BufferedImage target;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        mapPanel = new MapPanel(new Point(8282, 5179), 6);
+        mapPanel.setDiskCache(null);
+        mapPanel.setSize(MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT);
+        target = new BufferedImage(MapBenchmarks.WIDTH, MapBenchmarks.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Point position = mapPanel.getMapPosition();
+        int x0 = position.x / MapPanel.TILE_SIZE, y0 = position.y / MapPanel.TILE_SIZE;
+        int columns = (int) Math.ceil(Math.sqrt(cached));
+        for (int i = 0; i < cached; ++i)
+            mapPanel.getCache().put(mapPanel.getTileServer(), x0 + i % columns, y0 + i / columns, 6, MapBenchmarks.tile(i));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapPanel.getTileLoader().shutdown();
+    }
+
+    @Benchmark
+    public int paintTiles() {
+        Graphics2D g = target.createGraphics();
+        try {
+            mapPanel.paintTiles(g);
+        } finally {
+            g.dispose();
+        }
+        int n = i++ & 511;
+        return target.getRGB(n, n);
+    }
+}
@@ -0,0 +1,114 @@
+package graphics.map;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link Projection} with the formulas MapPanel used before it. The setup checks that both
+ * agree to a pixel on every point before anything is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ProjectionBenchmark {
+
+    private static final int ZOOM = 14;
+    private static final int POINTS = 1 << 16;
+    private static final int BULK = 1024;
+
+    private final double[] lon = new double[POINTS], lat = new double[POINTS];
+    private final int[] positions = new int[POINTS];
+    private final int[] x = new int[BULK], y = new int[BULK];
+    private int i;
+
+    // the formulas the projection replaced
+
+    static double referenceX(double lon, int z) {
+        double xmax = MapPanel.TILE_SIZE * (1 << z);
+        return (lon + 180) / 360 * xmax;
+    }
+
+    static double referenceY(double lat, int z) {
+        double ymax = MapPanel.TILE_SIZE * (1 << z);
+        return (1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * ymax;
+    }
+
+    static double referenceLat(int y, int z) {
+        double ymax = MapPanel.TILE_SIZE * (1 << z);
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI - (2.0 * Math.PI * y) / ymax)));
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < POINTS; ++i) {
+            lon[i] = random.nextDouble() * 360 - 180;
+            lat[i] = random.nextDouble() * 170 - 85;
+            positions[i] = (int) referenceY(lat[i], ZOOM);
+        }
+        // the largest distance to the reference before rounding, in pixels
+        double maxError = 0, maxLatError = 0;
+        for (int i = 0; i < POINTS; ++i) {
+            maxError = Math.max(maxError, Math.abs(Projection.lon2position(lon[i], ZOOM) - Math.floor(referenceX(lon[i], ZOOM))));
+            maxError = Math.max(maxError, Math.abs(Projection.lat2position(lat[i], ZOOM) - Math.floor(referenceY(lat[i], ZOOM))));
+            maxLatError = Math.max(maxLatError, Math.abs(Projection.position2lat(positions[i], ZOOM) - referenceLat(positions[i], ZOOM)));
+        }
+        if (maxError > 1 || maxLatError > 1e-9)
+            throw new IllegalStateException("the projection is off by " + maxError + " px, " + maxLatError + " degrees latitude");
+    }
+
+    private int next() {
+        return i++ & (POINTS - 1);
+    }
+
+    @Benchmark
+    public int referenceProject() {
+        int p = next();
+        return (int) Math.floor(referenceX(lon[p], ZOOM)) + (int) Math.floor(referenceY(lat[p], ZOOM));
+    }
+
+    @Benchmark
+    public int lon2position() {
+        return Projection.lon2position(lon[next()], ZOOM);
+    }
+
+    @Benchmark
+    public int lat2position() {
+        return Projection.lat2position(lat[next()], ZOOM);
+    }
+
+    /**
+     * Projects 1024 points per call, the time is per point.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public int project() {
+        Projection.project(lon, lat, BULK, ZOOM, x, y);
+        return x[BULK - 1] + y[BULK - 1];
+    }
+
+    @Benchmark
+    public double referenceLat() {
+        return referenceLat(positions[next()], ZOOM);
+    }
+
+    @Benchmark
+    public double position2lat() {
+        return Projection.position2lat(positions[next()], ZOOM);
+    }
+}
@@ -0,0 +1,54 @@
+package graphics.map;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graphics.map.MapPanel.Tile;
+
+/**
+ * Hashes and compares the tile keys of the caches, equal tiles built from distinct url strings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TileBenchmark {
+
+    private final Tile[] tiles = new Tile[1024], copies = new Tile[1024];
+    private int i;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(3);
+        String url = MapPanel.getTileServers().get(0).getURL();
+        for (int i = 0; i < tiles.length; ++i) {
+            int x = random.nextInt(1 << 14), y = random.nextInt(1 << 14);
+            tiles[i] = new Tile(url, x, y, 14);
+            copies[i] = new Tile(new String(url), x, y, 14);
+        }
+    }
+
+    @Benchmark
+    public int tileHashCode() {
+        return tiles[i++ & 1023].hashCode();
+    }
+
+    @Benchmark
+    public boolean tileEquals() {
+        int t = i++ & 1023;
+        return tiles[t].equals(copies[t]);
+    }
+}
@@ -0,0 +1,65 @@
+package graphics.map;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graphics.map.MapPanel.TileCache;
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Gets and puts on a cache that holds a quarter of the tiles asked for, so most puts evict. A new frame
+ * starts every 256 operations, as the painter does once per paint.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TileCacheBenchmark {
+
+    private static final int TILES = 4096;
+    private static final int OPERATIONS = 1 << 16;
+
+    private final int[] order = new int[OPERATIONS];
+    private TileServer tileServer;
+    private BufferedImage image;
+    private TileCache cache;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        tileServer = MapPanel.getTileServers().get(0);
+        image = new BufferedImage(MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(2);
+        for (int i = 0; i < OPERATIONS; ++i)
+            order[i] = random.nextInt(TILES);
+        cache = new MapPanel().getCache();
+        cache.setMaxBytes((long) TILES / 4 * MapPanel.TILE_SIZE * MapPanel.TILE_SIZE * 4);
+    }
+
+    @Benchmark
+    public boolean getPutChurn() {
+        int n = i++;
+        int t = order[n & (OPERATIONS - 1)];
+        int x = t & 63, y = t >> 6;
+        if (cache.get(tileServer, x, y, 12) != null)
+            return true;
+        cache.put(tileServer, x, y, 12, image);
+        if ((n & 255) == 0)
+            cache.nextFrame();
+        return false;
+    }
+}
@@ -46,8 +46,8 @@ public class Game {
 		System.out.println(p1);
 
 		// add route
-		Destination d1 = new Destination("Stavanger", 100, 100, 110000);
-		Destination d2 = new Destination("Trondheim", 10, 10, 130000);
+		Destination d1 = new Destination("Stavanger", 100, 100, 110000, 5.734863, 58.972667);
+		Destination d2 = new Destination("Trondheim", 10, 10, 130000, 10.395053, 63.430515);
 		Route r1 = new Route(d1, d2, 1000, planeLong);
 		p1.addRoute(r1);
 
@@ -0,0 +1,469 @@
+package graphics.map;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Second tier of the tile cache, keeping the raw tile images on disk between runs.
+ * <p>
+ * Tiles are stored as one file per tile under <code>&lt;dir&gt;/&lt;server&gt;/&lt;z&gt;/&lt;x&gt;/&lt;y&gt;.tile</code>.
+ * The index lives in an append-only journal: a tile file is written to a temporary name, forced to disk and
+ * renamed into place before its PUT line is appended, and the journal is forced to disk after every PUT,
+ * so after a crash the journal never refers to a half written tile. Lines that were cut off by a crash are
+ * ignored when the journal is replayed, and the journal is compacted, into a file that is forced to disk
+ * before it replaces the old one, once it holds a lot more lines than there are tiles. Writing a tile file
+ * and forcing the files to disk happen outside the lock of the cache, so lookups by the other workers do
+ * not wait for the disk.
+ * <p>
+ * A cache hit only records a READ line in the buffer of the journal, which is written out with the next
+ * PUT or when the cache is closed, so reading a tile does not write to the disk. A crash may lose the
+ * latest reads, which only changes the order tiles are evicted in.
+ * <p>
+ * The cache evicts the least recently used tiles once the total size exceeds the byte budget. A tile that
+ * is older than the cache expiry of its {@link TileServer} is treated as missing by {@link #get}, but is
+ * kept together with the ETag and the Last-Modified time the server sent for it, so it can be revalidated
+ * with a conditional request (see {@link #getStored} and {@link #touch}) instead of downloaded again. All
+ * methods are thread safe, they are called from the TileLoader workers.
+ */
+public final class DiskTileCache {
+
+    private static final Logger log = Logger.getLogger(DiskTileCache.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String MAGIC = "AIRPLANE-TILES 1";
+    // in place of the ETag of a tile the server sent none for
+    private static final String NO_ETAG = "-";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static DiskTileCache defaultCache;
+
+    private final File dir;
+    private long maxBytes;
+    private long size;
+    private int journalLines;
+    private FileOutputStream journalFile;
+    private Writer journal;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+    private static final class Entry {
+        private final long length;
+        private final long fetched;
+        private final long lastModified;
+        private final String etag;
+
+        private Entry(long length, long fetched, long lastModified, String etag) {
+            this.length = length;
+            this.fetched = fetched;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        private String journalLine(String key) {
+            return "PUT " + key + " " + length + " " + fetched + " " + lastModified + " " + (etag != null ? etag : NO_ETAG);
+        }
+    }
+
+    /**
+     * A tile as stored, fresh or expired.
+     */
+    static final class Stored {
+        final byte[] data;
+        // when the tile was fetched or last revalidated, in milliseconds since the epoch
+        final long fetched;
+        // the Last-Modified time the server sent with the tile, in milliseconds since the epoch, 0 if none
+        final long lastModified;
+        // the ETag the server sent with the tile, null if none
+        final String etag;
+
+        private Stored(byte[] data, long fetched, long lastModified, String etag) {
+            this.data = data;
+            this.fetched = fetched;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        boolean isExpired(TileServer tileServer) {
+            return System.currentTimeMillis() - fetched > tileServer.getCacheExpiry();
+        }
+    }
+
+    /**
+     * @return the cache shared by all map panels, stored in <code>~/.airplane/tiles</code>.
+     */
+    public static synchronized DiskTileCache getDefault() {
+        if (defaultCache == null) {
+            File dir = new File(new File(System.getProperty("user.home"), ".airplane"), "tiles");
+            defaultCache = new DiskTileCache(dir, DEFAULT_MAX_BYTES);
+        }
+        return defaultCache;
+    }
+
+    public DiskTileCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (journal != null)
+            trim();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getTileCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the stored bytes of the tile, or null if the tile is not cached or has expired.
+     */
+    public synchronized byte[] get(TileServer tileServer, int x, int y, int z) {
+        Stored stored = getStored(tileServer, x, y, z);
+        return stored == null || stored.isExpired(tileServer) ? null : stored.data;
+    }
+
+    /**
+     * @return the stored tile even if it has expired, or null if the tile is not cached.
+     */
+    synchronized Stored getStored(TileServer tileServer, int x, int y, int z) {
+        if (!open())
+            return null;
+        String key = key(tileServer, x, y, z);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        try {
+            byte[] data = Files.readAllBytes(file(key).toPath());
+            appendJournal("READ " + key);
+            return new Stored(data, entry.fetched, entry.lastModified, entry.etag);
+        } catch (IOException e) {
+            log.log(Level.FINE, "cached tile " + key + " is unreadable", e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Mark a stored tile as fresh again, after the server confirmed it has not changed.
+     */
+    void touch(TileServer tileServer, int x, int y, int z) {
+        String key = key(tileServer, x, y, z);
+        FileOutputStream written;
+        synchronized (this) {
+            if (!open())
+                return;
+            Entry old = entries.get(key);
+            if (old == null)
+                return;
+            Entry entry = new Entry(old.length, System.currentTimeMillis(), old.lastModified, old.etag);
+            entries.put(key, entry);
+            appendJournal(entry.journalLine(key));
+            written = flushJournal();
+        }
+        sync(written);
+    }
+
+    /**
+     * Store the bytes of a freshly fetched tile, replacing any older copy.
+     */
+    public void put(TileServer tileServer, int x, int y, int z, byte[] data) {
+        put(tileServer, x, y, z, data, null, 0);
+    }
+
+    /**
+     * Store the bytes of a freshly fetched tile with the validators the server sent for it, replacing any
+     * older copy.
+     * @param etag - may be null
+     * @param lastModified - the Last-Modified time in milliseconds since the epoch, 0 if none
+     */
+    void put(TileServer tileServer, int x, int y, int z, byte[] data, String etag, long lastModified) {
+        String key = key(tileServer, x, y, z);
+        File file = file(key);
+        // written and forced to disk without holding the lock, under a name of its own
+        File tmp;
+        try {
+            file.getParentFile().mkdirs();
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to store tile " + key, e);
+            return;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to store tile " + key, e);
+            tmp.delete();
+            return;
+        }
+        // the journal is ascii and split on spaces
+        if (etag != null && (!etag.matches("[\\x21-\\x7e]+") || etag.equals(NO_ETAG)))
+            etag = null;
+        FileOutputStream written;
+        synchronized (this) {
+            try {
+                if (!open())
+                    return;
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "failed to store tile " + key, e);
+                return;
+            } finally {
+                tmp.delete();
+            }
+            Entry entry = new Entry(data.length, System.currentTimeMillis(), lastModified, etag);
+            Entry old = entries.put(key, entry);
+            if (old != null)
+                size -= old.length;
+            size += data.length;
+            appendJournal(entry.journalLine(key));
+            trim();
+            written = flushJournal();
+        }
+        sync(written);
+    }
+
+    /**
+     * Remove every cached tile.
+     */
+    public synchronized void clear() {
+        if (!open())
+            return;
+        for (String key : entries.keySet())
+            file(key).delete();
+        entries.clear();
+        size = 0;
+        rewriteJournal();
+    }
+
+    public synchronized void close() {
+        if (journal == null)
+            return;
+        try {
+            try {
+                journal.flush();
+                journalFile.getFD().sync();
+            } finally {
+                journal.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "failed to close tile journal", e);
+        }
+        journal = null;
+        journalFile = null;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null)
+            return;
+        size -= entry.length;
+        file(key).delete();
+        appendJournal("DEL " + key);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue().length;
+            file(eldest.getKey()).delete();
+            appendJournal("DEL " + eldest.getKey());
+        }
+    }
+
+    /**
+     * Lazily replays the journal the first time the cache is used.
+     * @return false if the cache directory can not be used.
+     */
+    private boolean open() {
+        if (journal != null)
+            return true;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.log(Level.WARNING, "can not create tile cache directory " + dir);
+            return false;
+        }
+        File file = new File(dir, JOURNAL);
+        if (file.exists()) {
+            try {
+                readJournal(file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "tile journal is unreadable, starting over", e);
+                entries.clear();
+                size = 0;
+            }
+        }
+        // drop entries whose tile file went missing, and start from a compact journal
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (file(entry.getKey()).length() != entry.getValue().length) {
+                size -= entry.getValue().length;
+                it.remove();
+            }
+        }
+        return rewriteJournal();
+    }
+
+    private void readJournal(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ASCII));
+        try {
+            if (!MAGIC.equals(in.readLine()))
+                throw new IOException("not a tile journal: " + file);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                try {
+                    if (parts[0].equals("PUT") && parts.length >= 4 && parts.length <= 6) {
+                        Entry entry;
+                        if (parts.length == 6)
+                            entry = new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]), parts[5].equals(NO_ETAG) ? null : parts[5]);
+                        else // written before the Last-Modified time was kept
+                            entry = new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3]), 0, parts.length == 5 ? parts[4] : null);
+                        Entry old = entries.put(parts[1], entry);
+                        if (old != null)
+                            size -= old.length;
+                        size += entry.length;
+                    } else if (parts[0].equals("READ") && parts.length == 2) {
+                        entries.get(parts[1]);
+                    } else if (parts[0].equals("DEL") && parts.length == 2) {
+                        Entry old = entries.remove(parts[1]);
+                        if (old != null)
+                            size -= old.length;
+                    }
+                } catch (NumberFormatException e) {
+                    // the last line may have been cut off by a crash
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a journal holding only the current entries, in LRU order, and swap it in atomically.
+     */
+    private boolean rewriteJournal() {
+        close();
+        File tmp = new File(dir, JOURNAL_TMP);
+        try {
+            FileOutputStream tmpFile = new FileOutputStream(tmp);
+            Writer out = new BufferedWriter(new OutputStreamWriter(tmpFile, ASCII));
+            try {
+                out.write(MAGIC + "\n");
+                for (Map.Entry<String, Entry> entry : entries.entrySet())
+                    out.write(entry.getValue().journalLine(entry.getKey()) + "\n");
+                out.flush();
+                tmpFile.getFD().sync();
+            } finally {
+                out.close();
+            }
+            File file = new File(dir, JOURNAL);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalFile = new FileOutputStream(file, true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalFile, ASCII));
+            journalLines = entries.size();
+            return true;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to write tile journal", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add a line to the buffer of the journal. It reaches the disk with the next {@link #flushJournal()}, or
+     * once the buffer is full.
+     */
+    private void appendJournal(String line) {
+        if (journal == null)
+            return;
+        try {
+            journal.write(line);
+            journal.write('\n');
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to append to tile journal", e);
+        }
+        if (++journalLines > 2000 && journalLines > 2 * entries.size())
+            rewriteJournal();
+    }
+
+    /**
+     * Write the buffered journal lines to the journal file.
+     * @return the journal file, to force to disk with {@link #sync} once the lock is released, or null
+     */
+    private FileOutputStream flushJournal() {
+        if (journal == null)
+            return null;
+        try {
+            journal.flush();
+            return journalFile;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to write tile journal", e);
+            return null;
+        }
+    }
+
+    /**
+     * Force the lines written to a journal file to disk. Called without holding the lock, so one sync can
+     * cover the lines of several threads. A journal that was closed or compacted meanwhile is already on
+     * disk or replaced by one that is.
+     */
+    private static void sync(FileOutputStream journalFile) {
+        if (journalFile == null)
+            return;
+        try {
+            journalFile.getFD().sync();
+        } catch (IOException e) {
+            log.log(Level.FINE, "failed to force tile journal to disk", e);
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key + ".tile");
+    }
+
+    private static String key(TileServer tileServer, int x, int y, int z) {
+        return serverDirectory(tileServer) + "/" + z + "/" + x + "/" + y;
+    }
+
+    static String serverDirectory(TileServer tileServer) {
+        return tileServer.getURL().replaceFirst("^[a-z]+://", "").replaceAll("[^A-Za-z0-9.]+", "_");
+    }
+}
@@ -0,0 +1,176 @@
+package graphics.map;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+/**
+ * Drives everything that moves on a map panel from one clock.
+ * <p>
+ * While there is work, a background thread ticks at the refresh rate of the display and posts one
+ * frame to the event dispatch thread per tick. A frame runs every posted {@link FrameCallback} with the
+ * time of its tick, then repaints the panel once, however many callbacks ran or repaints were requested
+ * with {@link #requestFrame()}. If the previous frame is still waiting on the event dispatch thread
+ * when the next tick comes, the tick is skipped and counted as a dropped frame, so a slow paint makes
+ * animations advance in bigger steps instead of queueing up behind it. Without callbacks or requests
+ * the thread stops ticking.
+ * <p>
+ * Callbacks are added, removed and run on the event dispatch thread.
+ */
+public final class FrameScheduler {
+
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    /**
+     * Called once per frame on the event dispatch thread.
+     */
+    public interface FrameCallback {
+        /**
+         * @param frameTime - the time of the frame in nanoseconds, on the {@link System#nanoTime()} clock
+         * @return true to be called again next frame, false to be removed.
+         */
+        boolean doFrame(long frameTime);
+    }
+
+    private final JComponent component;
+    private final RenderStats stats;
+    private final long interval;
+    private final List<FrameCallback> callbacks = new ArrayList<FrameCallback>();
+    private final AtomicBoolean framePending = new AtomicBoolean();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> ticks;
+    private boolean repaintRequested;
+    private volatile long tickTime;
+
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            if (!framePending.compareAndSet(false, true)) {
+                stats.framesDropped(1);
+                return;
+            }
+            tickTime = System.nanoTime();
+            SwingUtilities.invokeLater(frame);
+        }
+    };
+
+    private final Runnable frame = new Runnable() {
+        public void run() {
+            doFrame(tickTime);
+        }
+    };
+
+    /**
+     * @param component - the component repainted every frame
+     * @param stats - where dropped frames are counted
+     */
+    FrameScheduler(JComponent component, RenderStats stats) {
+        this.component = component;
+        this.stats = stats;
+        this.interval = 1000000000L / refreshRate();
+    }
+
+    /**
+     * @return the time between two frames in nanoseconds.
+     */
+    public long getFrameInterval() {
+        return interval;
+    }
+
+    /**
+     * Run a callback every frame, starting with the next one, until it returns false or is removed.
+     */
+    public void post(FrameCallback callback) {
+        if (!callbacks.contains(callback))
+            callbacks.add(callback);
+        start();
+    }
+
+    public void remove(FrameCallback callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * Repaint the component with the next frame. Requests within one frame are coalesced.
+     */
+    public void requestFrame() {
+        repaintRequested = true;
+        start();
+    }
+
+    /**
+     * Stop ticking and drop the callbacks.
+     */
+    public void shutdown() {
+        callbacks.clear();
+        repaintRequested = false;
+        stop();
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private void doFrame(long frameTime) {
+        framePending.set(false);
+        boolean repaint = repaintRequested || !callbacks.isEmpty();
+        repaintRequested = false;
+        // a copy, since callbacks may post or remove callbacks
+        FrameCallback[] running = callbacks.toArray(new FrameCallback[callbacks.size()]);
+        for (FrameCallback callback : running) {
+            if (!callback.doFrame(frameTime))
+                callbacks.remove(callback);
+        }
+        if (repaint)
+            component.repaint();
+        if (callbacks.isEmpty() && !repaintRequested)
+            stop();
+    }
+
+    private synchronized void start() {
+        if (ticks != null)
+            return;
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FrameScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        ticks = executor.scheduleAtFixedRate(tick, 0, interval, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void stop() {
+        if (ticks == null)
+            return;
+        ticks.cancel(false);
+        ticks = null;
+    }
+
+    private static int refreshRate() {
+        try {
+            if (!GraphicsEnvironment.isHeadless()) {
+                DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+                if (mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN && mode.getRefreshRate() > 0)
+                    return mode.getRefreshRate();
+            }
+        } catch (HeadlessException e) {
+            // fall through to the default
+        }
+        return DEFAULT_REFRESH_RATE;
+    }
+}
@@ -0,0 +1,228 @@
+package graphics.map;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long keys to values that remembers the order in which entries were last used.
+ * <p>
+ * Keys live in an open-addressing table with linear probing, so a lookup neither boxes the key nor
+ * allocates. Entries are kept in parallel arrays and chained into a doubly linked list from least to most
+ * recently used; the slot of an entry never changes while it is in the map, so a caller may walk the
+ * list with {@link #eldest()} and {@link #newer(int)} and remove entries on the way.
+ * Not thread safe.
+ */
+final class LongLruMap<V> {
+
+    private static final int NONE = -1;
+
+    // entry storage, indexed by entry slot
+    private long[] keys;
+    private Object[] values;
+    private int[] older, newer;
+    private int eldest = NONE, youngest = NONE;
+    private int free = NONE;
+    private int used;
+
+    // hash table holding entry slot + 1, 0 meaning empty
+    private int[] table;
+    private int shift;
+    private int size;
+
+    LongLruMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        table = new int[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        int entries = capacity / 2;
+        keys = new long[entries];
+        values = new Object[entries];
+        older = new int[entries];
+        newer = new int[entries];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the key, which becomes the most recently used entry, or null.
+     */
+    V get(long key) {
+        int slot = find(key);
+        if (slot == NONE)
+            return null;
+        unlink(slot);
+        linkYoungest(slot);
+        return value(slot);
+    }
+
+    /**
+     * @return the value of the key without changing the usage order, or null.
+     */
+    V peek(long key) {
+        int slot = find(key);
+        return slot == NONE ? null : value(slot);
+    }
+
+    /**
+     * Insert or replace the value of the key and make it the most recently used entry.
+     * @return the previous value, or null.
+     */
+    V put(long key, V value) {
+        int slot = find(key);
+        if (slot != NONE) {
+            V old = value(slot);
+            values[slot] = value;
+            unlink(slot);
+            linkYoungest(slot);
+            return old;
+        }
+        if (size + 1 > keys.length)
+            grow();
+        slot = allocate();
+        keys[slot] = key;
+        values[slot] = value;
+        linkYoungest(slot);
+        int i = index(key);
+        while (table[i] != 0)
+            i = (i + 1) & (table.length - 1);
+        table[i] = slot + 1;
+        ++size;
+        return null;
+    }
+
+    V remove(long key) {
+        int slot = find(key);
+        if (slot == NONE)
+            return null;
+        V old = value(slot);
+        removeAt(slot);
+        return old;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(values, null);
+        eldest = youngest = free = NONE;
+        used = 0;
+        size = 0;
+    }
+
+    /**
+     * @return the slot of the least recently used entry, or -1 if the map is empty.
+     */
+    int eldest() {
+        return eldest;
+    }
+
+    /**
+     * @return the slot of the entry used right after the given one, or -1.
+     */
+    int newer(int slot) {
+        return newer[slot];
+    }
+
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    V value(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Remove the entry in the given slot. Slots of the other entries stay valid.
+     */
+    void removeAt(int slot) {
+        int i = index(keys[slot]);
+        while (table[i] != slot + 1)
+            i = (i + 1) & (table.length - 1);
+        deleteFromTable(i);
+        unlink(slot);
+        values[slot] = null;
+        newer[slot] = free;
+        free = slot;
+        --size;
+    }
+
+    private int find(long key) {
+        int mask = table.length - 1;
+        for (int i = index(key); table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (keys[slot] == key)
+                return slot;
+        }
+        return NONE;
+    }
+
+    private int index(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * Backward shift deletion, keeps every probe sequence free of holes without tombstones.
+     */
+    private void deleteFromTable(int hole) {
+        int mask = table.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (table[i] == 0)
+                break;
+            int home = index(keys[table[i] - 1]);
+            // move the entry into the hole unless its home lies cyclically in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private int allocate() {
+        if (free != NONE) {
+            int slot = free;
+            free = newer[slot];
+            return slot;
+        }
+        return used++;
+    }
+
+    private void grow() {
+        int entries = keys.length * 2;
+        keys = Arrays.copyOf(keys, entries);
+        values = Arrays.copyOf(values, entries);
+        older = Arrays.copyOf(older, entries);
+        newer = Arrays.copyOf(newer, entries);
+        table = new int[entries * 2];
+        shift--;
+        for (int slot = eldest; slot != NONE; slot = newer[slot]) {
+            int i = index(keys[slot]);
+            while (table[i] != 0)
+                i = (i + 1) & (table.length - 1);
+            table[i] = slot + 1;
+        }
+    }
+
+    private void unlink(int slot) {
+        int o = older[slot], n = newer[slot];
+        if (o == NONE)
+            eldest = n;
+        else
+            newer[o] = n;
+        if (n == NONE)
+            youngest = o;
+        else
+            older[n] = o;
+    }
+
+    private void linkYoungest(int slot) {
+        older[slot] = youngest;
+        newer[slot] = NONE;
+        if (youngest == NONE)
+            eldest = slot;
+        else
+            newer[youngest] = slot;
+        youngest = slot;
+    }
+}
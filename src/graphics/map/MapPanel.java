@@ -27,11 +27,11 @@ import java.awt.Dimension;
 import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 
 import java.awt.LayoutManager;
 import java.awt.Point;
-import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 
@@ -51,20 +51,20 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 
-import java.net.URL;
 
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 
@@ -90,7 +90,6 @@ import javax.swing.ToolTipManager;
 
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
-import javax.swing.Timer;
 import javax.swing.UIManager;
 
 import routes.Route;
@@ -127,19 +126,52 @@ public class MapPanel extends JPanel {
     private static final Logger log = Logger.getLogger(MapPanel.class.getName());
 
     public static final class TileServer {
+        private static final AtomicInteger nextIndex = new AtomicInteger();
+
+        private final int index = nextIndex.getAndIncrement();
+        private final String name;
         private final String url;
+        private final TileUrlTemplate template;
         private final int maxZoom;
-        private boolean broken;
-
-        private TileServer(String url, int maxZoom) {
+        private final int tileSize;
+        private final long cacheExpiry;
+        private final TilePack pack;
+        private volatile boolean broken;
+
+        /**
+         * Tile servers are defined in a {@link TileServerRegistry} or created by {@link #forPack(TilePack)}.
+         */
+        TileServer(String name, String url, TileUrlTemplate template, int maxZoom, int tileSize, long cacheExpiry, TilePack pack) {
+            this.name = name;
             this.url = url;
+            this.template = template;
             this.maxZoom = maxZoom;
+            this.tileSize = tileSize;
+            this.cacheExpiry = cacheExpiry;
+            this.pack = pack;
+        }
+
+        /**
+         * Create a tile server serving the tiles of an offline tile pack.
+         * Register it with {@link MapPanel#addTileServer(TileServer)} to make it selectable.
+         */
+        public static TileServer forPack(TilePack pack) {
+            String url = "pack:" + pack.getFile().getPath() + "/";
+            return new TileServer(pack.getFile().getName(), url, new TileUrlTemplate(url + "{z}/{x}/{y}"),
+                    pack.getMaxZoom(), TILE_SIZE, Long.MAX_VALUE, pack);
         }
 
         public String toString() {
             return url;
         }
 
+        /**
+         * @return the name of the server shown in the menu.
+         */
+        public String getName() {
+            return name;
+        }
+
         public int getMaxZoom() {
             return maxZoom;
         }
@@ -147,6 +179,41 @@ public class MapPanel extends JPanel {
             return url;
         }
 
+        /**
+         * @return the compiled template the urls of the tiles of this server are expanded from.
+         */
+        TileUrlTemplate getTemplate() {
+            return template;
+        }
+
+        /**
+         * @return the width and height of a tile in pixels, always {@link MapPanel#TILE_SIZE} for now.
+         */
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        /**
+         * @return a small number unique to this server, used instead of the url in tile cache keys.
+         */
+        int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return how long, in milliseconds, a tile from this server may be served from the disk cache.
+         */
+        public long getCacheExpiry() {
+            return cacheExpiry;
+        }
+
+        /**
+         * @return the pack this server reads its tiles from, or null for a http tile server.
+         */
+        public TilePack getPack() {
+            return pack;
+        }
+
         public boolean isBroken() {
             return broken;
         }
@@ -157,31 +224,30 @@ public class MapPanel extends JPanel {
     }
 
     /* constants ... */
-    private static final TileServer[] TILESERVERS = {
-    	new TileServer("http://tile.opencyclemap.org/cycle/", 18),
-    	new TileServer("http://otile1.mqcdn.com/tiles/1.0.0/osm/", 18),
-    	new TileServer("http://tile.openstreetmap.org/", 18),
-        new TileServer("http://opencache.statkart.no/gatekeeper/gk/gk.open_gmaps?layers=topo2", 17),
-        new TileServer("http://opencache.statkart.no/gatekeeper/gk/gk.open_gmaps?layers=toporaster2", 17),
-        new TileServer("http://opencache.statkart.no/gatekeeper/gk/gk.open_gmaps?layers=europa", 17),
-        new TileServer("http://opencache.statkart.no/gatekeeper/gk/gk.open_gmaps?layers=kartdata2", 12),
-        
-        
-    };
 
    
     private static final int PREFERRED_WIDTH = 320;
     private static final int PREFERRED_HEIGHT = 200;
 
 
-    private static final int ANIMATION_FPS = 15, ANIMATION_DURARTION_MS = 500;
+    private static final int ANIMATION_DURARTION_MS = 500;
+    // kinetic panning: the fling velocity decays exponentially, speeds in map pixels per millisecond
+    private static final double FLING_TIME_CONSTANT_MS = 325;
+    private static final double FLING_MIN_SPEED = 0.3, FLING_STOP_SPEED = 0.02;
+    private static final long FLING_MAX_IDLE_MS = 50;
     
 
 
     /* basically not be changed */
-    private static final int TILE_SIZE = 256;
+    static final int TILE_SIZE = 256;
     private static final int CACHE_SIZE = 256;
+    private static final long CACHE_BYTES = 96L * 1024 * 1024;
     private static final int MAGNIFIER_SIZE = 100;
+    private static final BasicStroke SCALE_STROKE = OverlayPainter.ROUTE_STROKE;
+    private static final int MAX_FALLBACK_LEVELS = 6;
+
+    private static final Color PLACEHOLDER_FILL = new Color(0xd0, 0xd0, 0xd0);
+    private static final Color PLACEHOLDER_BORDER = new Color(0xc4, 0xc4, 0xc4);
 
     //-------------------------------------------------------------------------
     // tile url construction.
@@ -200,23 +266,8 @@ public class MapPanel extends JPanel {
      * @return An url string used to request a tile from statkart's map service.
      */
     public static String getTileString(TileServer tileServer, int xtile, int ytile, int zoom) {
-    	String number;
-    	String url;
-    	if(tileServer.getURL().startsWith("http://tile")) {
-    		number = ("" + zoom + "/" + xtile + "/" + ytile);
-    		url = tileServer.getURL() + number + ".png";
-    	}
-    	else if( tileServer.getURL().equals("http://otile1.mqcdn.com/tiles/1.0.0/osm/")){
-    		number = ("" + zoom + "/" + xtile + "/" + ytile);
-    		url = tileServer.getURL() + number + ".png";
-    	}
-    	else{
-    		number = "&zoom=" + zoom + "&x="+xtile+"&y="+ytile; 
-    		url = tileServer.getURL() + number;
-            
-    	}
-    	
-        return url;
+        // the url scheme of every server is compiled into its template by the TileServerRegistry
+        return tileServer.getTemplate().expand(xtile, ytile, zoom);
     }
 
     //-------------------------------------------------------------------------
@@ -226,11 +277,25 @@ public class MapPanel extends JPanel {
     private Point mapPosition = new Point(0, 0);
     private int zoom;
 
-    private TileServer tileServer = TILESERVERS[0];
+    private TileServer tileServer = getTileServers().get(0);
 
     private DragListener mouseListener = new DragListener();
     private TileCache cache = new TileCache();
-    private Stats stats = new Stats();
+    private TileLoader tileLoader = new TileLoader(this);
+    private TilePrefetcher prefetcher = new TilePrefetcher(this);
+    private TileServerMonitor tileServerMonitor = TileServerMonitor.getDefault();
+    private TileServerMonitor.Listener monitorListener = new TileServerMonitor.Listener() {
+        public void tileServerChanged(TileServer tileServer, boolean broken) {
+            // fail over as soon as the active server breaks
+            if (broken && tileServer == getTileServer())
+                nextTileServer();
+        }
+    };
+    private volatile DiskTileCache diskCache = DiskTileCache.getDefault();
+    private final RenderStats stats = new RenderStats(this);
+    private boolean showStats;
+    private final FrameScheduler frameScheduler = new FrameScheduler(this, stats);
+    private TileBuffer tileBuffer = new TileBuffer();
     private OverlayPanel overlayPanel = new OverlayPanel();
     private ControlPanel controlPanel = new ControlPanel();
     private OverlayMarkerPanel overlayMarkerPanel = new OverlayMarkerPanel(); //OLAV: til marker
@@ -242,7 +307,7 @@ public class MapPanel extends JPanel {
     private int smoothOffset = 0;
     private Point smoothPosition, smoothPivot;
     private Rectangle magnifyRegion;
-    private Marker[] markerList = new Marker[0]; //OLAV: listen med info
+    private OverlayPainter overlayPainter = new OverlayPainter();
     private HashMap<String, Route> routes = new HashMap<String, Route>();
 
    
@@ -266,25 +331,33 @@ public class MapPanel extends JPanel {
         addMouseWheelListener(mouseListener);
         setZoom(zoom);
         setMapPosition(mapPosition);
-        checkTileServers();
         checkActiveTileServer();
     }
 
-    private void checkTileServers() {
-        for (TileServer tileServer : TILESERVERS) {
-            String urlstring = getTileString(tileServer, 1, 1, 1);
-            try {
-                URL url = new URL(urlstring);
-                Object content = url.getContent();
-            } catch (Exception e) {
-                log.log(Level.SEVERE, "failed to get content from url " + urlstring);
-                tileServer.setBroken(true);
-            }
-        }
+    public void addNotify() {
+        super.addNotify();
+        tileServerMonitor.addListener(monitorListener);
+        tileServerMonitor.start();
+        stats.register();
+    }
+
+    public void removeNotify() {
+        tileServerMonitor.removeListener(monitorListener);
+        stats.unregister();
+        // the scheduler drops its callbacks, so end everything that waits for a frame
+        if (animation != null)
+            animation.finish();
+        mouseListener.stopFling();
+        mouseListener.cancelDrag();
+        frameScheduler.shutdown();
+        // the idle workers would hold on to the panel, they start again with the next request
+        tileLoader.shutdown();
+        super.removeNotify();
     }
 
     private void checkActiveTileServer() {
-        if (getTileServer() != null && getTileServer().isBroken()) {
+        // nobody to tell when running headless, as the benchmarks do
+        if (getTileServer() != null && getTileServer().isBroken() && !GraphicsEnvironment.isHeadless()) {
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     JOptionPane.showMessageDialog(
@@ -296,14 +369,43 @@ public class MapPanel extends JPanel {
         }
     }
 
+    /**
+     * Switch to the next tile server that is not marked broken. If every other server is broken, simply
+     * switch to the next one.
+     */
     public void nextTileServer() {
-        int index = Arrays.asList(TILESERVERS).indexOf(getTileServer());
+        List<TileServer> tileServers = getTileServers();
+        int index = tileServers.indexOf(getTileServer());
         if (index == -1)
             return;
-        setTileServer(TILESERVERS[(index + 1) % TILESERVERS.length]);
+        TileServer next = tileServers.get((index + 1) % tileServers.size());
+        for (int i = 1; i < tileServers.size(); ++i) {
+            TileServer candidate = tileServers.get((index + i) % tileServers.size());
+            if (!candidate.isBroken()) {
+                next = candidate;
+                break;
+            }
+        }
+        setTileServer(next);
         repaint();
     }
 
+    /**
+     * @return every tile server that can be selected, in menu order, as defined by the
+     * {@link TileServerRegistry#getDefault() default registry}.
+     */
+    public static List<TileServer> getTileServers() {
+        return TileServerRegistry.getDefault().getTileServers();
+    }
+
+    /**
+     * Make another tile server, for example one created by {@link TileServer#forPack(TilePack)}, selectable.
+     * Menus created after this call will list it.
+     */
+    public static void addTileServer(TileServer tileServer) {
+        TileServerRegistry.getDefault().add(tileServer);
+    }
+
     public TileServer getTileServer() {
         return tileServer;
     }
@@ -319,8 +421,7 @@ public class MapPanel extends JPanel {
      * @param isMarker - Decides how to interpret the points. True = markers False = vertexes in a path 
      */
     public void setMarkers(Marker[] marker, boolean isMarker) {
-    	this.markerList = marker;
-    	
+    	overlayPainter.setMarkers(marker);
     	
     	getOverlayMarkerPanel().repaint();
     }
@@ -358,23 +459,25 @@ public class MapPanel extends JPanel {
      * @return a list of points containing longitude and latitude.
      */
     public Marker[] getMarkers() {
-    	return this.markerList;
+    	return overlayPainter.getMarkers();
     }
     
     
     
     public void flushMarkers() {
-    	this.markerList = new Marker[0];
+    	overlayPainter.setMarkers(new Marker[0]);
     }
     
 
     public void put(String key, Route value) {
     	this.routes.put(key, value);
+    	overlayPainter.setRoutes(routes.values());
     }
     
     public void remove(String key) {
     	if(this.routes.containsKey(key)) {
     		this.routes.remove(key);
+    		overlayPainter.setRoutes(routes.values());
     	}
     }
     
@@ -390,12 +493,18 @@ public class MapPanel extends JPanel {
     public void setTileServer(TileServer tileServer) {
         if(this.tileServer == tileServer)
             return;
+        TileServer oldTileServer = this.tileServer;
         this.tileServer = tileServer;
         while (getZoom() > tileServer.getMaxZoom())
             zoomOut(new Point(getWidth() / 2, getHeight() / 2));
+        firePropertyChange("tileServer", oldTileServer, tileServer);
         checkActiveTileServer();
     }
 
+    public TileServerMonitor getTileServerMonitor() {
+        return tileServerMonitor;
+    }
+
     public boolean isUseAnimations() {
         return useAnimations;
     }
@@ -425,11 +534,46 @@ public class MapPanel extends JPanel {
     public TileCache getCache() {
         return cache;
     }
+
+    TileLoader getTileLoader() {
+        return tileLoader;
+    }
+
+    public DiskTileCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Set the on-disk tile cache consulted before the tile servers.
+     * @param diskCache - the cache to use, or null to always download tiles.
+     */
+    public void setDiskCache(DiskTileCache diskCache) {
+        this.diskCache = diskCache;
+    }
     
-    public Stats getStats() {
+    public RenderStats getStats() {
         return stats;
     }
 
+    /**
+     * @return the scheduler that runs the animations of this panel, one frame per display refresh.
+     */
+    public FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    public boolean isShowStats() {
+        return showStats;
+    }
+
+    /**
+     * Show the render stats on the map, above the scale.
+     */
+    public void setShowStats(boolean showStats) {
+        this.showStats = showStats;
+        repaint();
+    }
+
     public Point getMapPosition() {
         return new Point(mapPosition.x, mapPosition.y);
     }
@@ -471,6 +615,9 @@ public class MapPanel extends JPanel {
     public void setZoom(int zoom) {
         if (zoom == this.zoom)
             return;
+        // a fling or a pending drag moves by pixels of the old zoom level
+        mouseListener.stopFling();
+        mouseListener.cancelDrag();
         int oldZoom = this.zoom;
         this.zoom = Math.min(getTileServer().getMaxZoom(), zoom);
         mapSize.width = getXMax();
@@ -482,24 +629,21 @@ public class MapPanel extends JPanel {
     public void zoomInAnimated(Point pivot) {
         if (!useAnimations) {
             zoomIn(pivot);
+            prefetcher.onZoom(pivot, getZoom() + 1);
             return;
         }
         if (animation != null)
             return;
         mouseListener.downCoords = null;
-        animation = new Animation(AnimationType.ZOOM_IN, ANIMATION_FPS, ANIMATION_DURARTION_MS) {
+        animation = new Animation(AnimationType.ZOOM_IN, ANIMATION_DURARTION_MS, frameScheduler) {
             protected void onComplete() {
                 smoothScale = 1.0d;
                 smoothPosition = smoothPivot = null;
                 smoothOffset = 0;
                 animation = null;
-            
-                repaint();
-               
             }
             protected void onFrame() {
                 smoothScale = 1.0 + getFactor();
-                repaint();
             }
 
         };
@@ -507,29 +651,28 @@ public class MapPanel extends JPanel {
         smoothPivot = new Point(pivot.x, pivot.y);
         smoothOffset = -1;
         zoomIn(pivot);
+        prefetcher.onZoom(pivot, getZoom() + 1);
         animation.run();
     }
 
     public void zoomOutAnimated(Point pivot) {
         if (!useAnimations) {
             zoomOut(pivot);
+            prefetcher.onZoom(pivot, getZoom() - 1);
             return;
         }
         if (animation != null)
             return;
         mouseListener.downCoords = null;
-        animation = new Animation(AnimationType.ZOOM_OUT, ANIMATION_FPS, ANIMATION_DURARTION_MS) {
+        animation = new Animation(AnimationType.ZOOM_OUT, ANIMATION_DURARTION_MS, frameScheduler) {
             protected void onComplete() {
                 smoothScale = 1.0d;
                 smoothPosition = smoothPivot = null;
                 smoothOffset = 0;
                 animation = null;
-                repaint();
             }
             protected void onFrame() {
                 smoothScale = 1 - .5 * getFactor();
-                
-                repaint();
             }
 
         };
@@ -537,6 +680,7 @@ public class MapPanel extends JPanel {
         smoothPivot = new Point(pivot.x, pivot.y);
         smoothOffset = 1;
         zoomOut(pivot);
+        prefetcher.onZoom(pivot, getZoom() - 1);
         animation.run();
     }
 
@@ -606,6 +750,12 @@ public class MapPanel extends JPanel {
         return new Point(x, y);
     }
 
+    public void paint(Graphics g) {
+        long t0 = System.nanoTime();
+        super.paint(g);
+        stats.frame(System.nanoTime() - t0);
+    }
+
     protected void paintComponent(Graphics gOrig) {
         super.paintComponent(gOrig);
         Graphics2D g = (Graphics2D) gOrig.create();
@@ -616,15 +766,38 @@ public class MapPanel extends JPanel {
         }
     }
 
-    private static final class Painter {
+    /**
+     * Paints the tiles of one zoom level. A painter of the panel requests the tiles it misses from the
+     * TileLoader; a painter made for a cache of its own, as the {@link MapRenderer} does, paints what the
+     * cache holds and nothing else.
+     */
+    static final class Painter {
         private final int zoom;
         private float transparency = 1F;
         private double scale = 1d;
         private final MapPanel mapPanel;
+        private final TileCache cache;
+        private final TileServer tileServer;
+        private final int width, height;
 
         private Painter(MapPanel mapPanel, int zoom) {
+            this(mapPanel, mapPanel.getCache(), mapPanel.getTileServer(), zoom, mapPanel.getWidth(), mapPanel.getHeight());
+        }
+
+        /**
+         * A painter that is not bound to a panel, painting an area of width x height pixels from a cache.
+         */
+        Painter(TileCache cache, TileServer tileServer, int zoom, int width, int height) {
+            this(null, cache, tileServer, zoom, width, height);
+        }
+
+        private Painter(MapPanel mapPanel, TileCache cache, TileServer tileServer, int zoom, int width, int height) {
             this.mapPanel = mapPanel;
+            this.cache = cache;
+            this.tileServer = tileServer;
             this.zoom = zoom;
+            this.width = width;
+            this.height = height;
         }
 
         public float getTransparency() {
@@ -643,7 +816,15 @@ public class MapPanel extends JPanel {
             this.scale = scale;
         }
 
-        private void paint(Graphics2D gOrig, Point mapPosition, Point scalePosition) {
+        void paint(Graphics2D gOrig, Point mapPosition, Point scalePosition) {
+            paint(gOrig, mapPosition, scalePosition, 0, 0, width, height);
+        }
+
+        /**
+         * Paint only the tiles covering an area of the panel. The area is given in panel coordinates and
+         * only makes sense for a painter that is not scaled.
+         */
+        private void paint(Graphics2D gOrig, Point mapPosition, Point scalePosition, int areaX, int areaY, int areaWidth, int areaHeight) {
             Graphics2D g = (Graphics2D) gOrig.create();
             try {
                 if (getTransparency() < 1f && getTransparency() >= 0f) {
@@ -659,12 +840,10 @@ public class MapPanel extends JPanel {
                     g.transform(xform);
                     g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
                 }
-                int width = mapPanel.getWidth();
-                int height = mapPanel.getHeight();
-                int x0 = (int) Math.floor(((double) mapPosition.x) / TILE_SIZE);
-                int y0 = (int) Math.floor(((double) mapPosition.y) / TILE_SIZE);
-                int x1 = (int) Math.ceil(((double) mapPosition.x + width) / TILE_SIZE);
-                int y1 = (int) Math.ceil(((double) mapPosition.y + height) / TILE_SIZE);
+                int x0 = (int) Math.floor(((double) mapPosition.x + areaX) / TILE_SIZE);
+                int y0 = (int) Math.floor(((double) mapPosition.y + areaY) / TILE_SIZE);
+                int x1 = (int) Math.ceil(((double) mapPosition.x + areaX + areaWidth) / TILE_SIZE);
+                int y1 = (int) Math.ceil(((double) mapPosition.y + areaY + areaHeight) / TILE_SIZE);
                 
                 int dy = y0 * TILE_SIZE - mapPosition.y;
                 for (int y = y0; y < y1; ++y) {
@@ -672,12 +851,13 @@ public class MapPanel extends JPanel {
                     for (int x = x0; x < x1; ++x) {
                         paintTile(g, dx, dy, x, y);
                         dx += TILE_SIZE;
-                        ++mapPanel.getStats().tileCount;
+                        if (mapPanel != null)
+                            ++mapPanel.stats.tileCount;
                     }
                     dy += TILE_SIZE;
                 }
                 
-                if (getScale() == 1d && mapPanel.magnifyRegion != null) {
+                if (getScale() == 1d && mapPanel != null && mapPanel.magnifyRegion != null) {
                     Rectangle magnifyRegion = new Rectangle(mapPanel.magnifyRegion);
                     magnifyRegion.translate(-mapPosition.x, -mapPosition.y);
                     g.setColor(Color.yellow);
@@ -702,22 +882,15 @@ public class MapPanel extends JPanel {
             boolean tileInBounds = x >= 0 && x < xTileCount && y >= 0 && y < yTileCount;
             boolean drawImage = DRAW_IMAGES && tileInBounds;
             if (drawImage) {
-                TileCache cache = mapPanel.getCache();
-                TileServer tileServer = mapPanel.getTileServer();
                 Image image = cache.get(tileServer, x, y, zoom);
                 if (image == null) {
-                    final String url = getTileString(tileServer, x, y, zoom);
-                    try {
-                        //System.err.println("loading: " + url);
-                        image = Toolkit.getDefaultToolkit().getImage(new URL(url));
-                    } catch (Exception e) {
-                        log.log(Level.SEVERE, "failed to load url \"" + url + "\"", e);
-                    }
-                    if (image != null)
-                        cache.put(tileServer, x, y, zoom, image);
-                }
-                if (image != null) {
-                    g.drawImage(image, dx, dy, mapPanel);
+                    if (mapPanel != null)
+                        mapPanel.getTileLoader().request(tileServer, x, y, zoom);
+                    if (!paintAncestor(g, dx, dy, x, y))
+                        paintPlaceholder(g, dx, dy);
+                } else {
+                    // tiles are fully decoded images, there is nothing to observe
+                    g.drawImage(image, dx, dy, null);
                     imageDrawn = true;
                 }
             }
@@ -730,12 +903,44 @@ public class MapPanel extends JPanel {
             }
         }
 
+        /**
+         * Stand in for a tile that is still loading with the matching quadrant of the closest cached
+         * tile from a lower zoom level, scaled up.
+         * @return false if none of the ancestors is cached either.
+         */
+        private boolean paintAncestor(Graphics2D g, int dx, int dy, int x, int y) {
+            for (int level = 1; level <= MAX_FALLBACK_LEVELS && level <= zoom; ++level) {
+                int ax = x >> level;
+                int ay = y >> level;
+                Image ancestor = cache.peek(tileServer, ax, ay, zoom - level);
+                if (ancestor == null)
+                    continue;
+                int size = TILE_SIZE >> level;
+                int sx = (x - (ax << level)) * size;
+                int sy = (y - (ay << level)) * size;
+                g.drawImage(ancestor, dx, dy, dx + TILE_SIZE, dy + TILE_SIZE, sx, sy, sx + size, sy + size, null);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Drawn in place of a tile that is still being loaded by the TileLoader, when no ancestor is cached.
+         */
+        private void paintPlaceholder(Graphics2D g, int dx, int dy) {
+            g.setColor(PLACEHOLDER_FILL);
+            g.fillRect(dx, dy, TILE_SIZE, TILE_SIZE);
+            g.setColor(PLACEHOLDER_BORDER);
+            g.drawRect(dx, dy, TILE_SIZE - 1, TILE_SIZE - 1);
+        }
+
 
     }
 
     private void paintInternal(Graphics2D g) {
-        stats.reset();
-        long t0 = System.currentTimeMillis();
+        stats.tileCount = 0;
+        cache.nextFrame();
+        long t0 = System.nanoTime();
 
         if (smoothPosition != null) {
             {
@@ -761,13 +966,117 @@ public class MapPanel extends JPanel {
         }
 
         if (smoothPosition == null) {
-            Point position = getMapPosition();
-            Painter painter = new Painter(this, getZoom());
-            painter.paint(g, position, null);
+            tileBuffer.paint(g);
+        }
+
+        stats.tilePass(System.nanoTime() - t0);
+    }
+
+    /**
+     * Paint the tile layer of the current view straight into g, without the backbuffer.
+     */
+    void paintTiles(Graphics2D g) {
+        new Painter(this, getZoom()).paint(g, getMapPosition(), null);
+    }
+
+    /**
+     * Called by the TileLoader on the event dispatch thread when a tile arrived in the cache.
+     */
+    void tileLoaded(TileServer tileServer, int x, int y, int z) {
+        tileBuffer.invalidateTile(tileServer, x, y, z);
+    }
+
+    /**
+     * Keeps the tile layer rendered in an offscreen image between repaints.
+     * <p>
+     * A repaint that did not move the map costs a single image copy. When the map was panned the buffer
+     * contents are shifted with copyArea and only the strips that scrolled into view are painted. Tiles
+     * that arrive from the TileLoader mark their area dirty, and only the dirty area is painted again.
+     * A change of zoom, tile server or panel size redraws the whole buffer.
+     */
+    private final class TileBuffer {
+        private BufferedImage image;
+        private int bufferX, bufferY;
+        private int bufferZoom;
+        private TileServer bufferTileServer;
+        private boolean valid;
+        // dirty area in map coordinates of bufferZoom, or null
+        private Rectangle dirty;
+
+        private void paint(Graphics2D g) {
+            int width = getWidth();
+            int height = getHeight();
+            if (width <= 0 || height <= 0)
+                return;
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                image = getGraphicsConfiguration() != null
+                        ? getGraphicsConfiguration().createCompatibleImage(width, height)
+                        : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                valid = false;
+            }
+            int dx = mapPosition.x - bufferX;
+            int dy = mapPosition.y - bufferY;
+            if (bufferZoom != getZoom() || bufferTileServer != getTileServer() || Math.abs(dx) >= width || Math.abs(dy) >= height)
+                valid = false;
+
+            Graphics2D bg = image.createGraphics();
+            try {
+                Painter painter = new Painter(MapPanel.this, getZoom());
+                Point position = getMapPosition();
+                if (!valid) {
+                    bg.setColor(getBackground());
+                    bg.fillRect(0, 0, width, height);
+                    painter.paint(bg, position, null, 0, 0, width, height);
+                    dirty = null;
+                } else {
+                    if (dx != 0 || dy != 0) {
+                        bg.copyArea(0, 0, width, height, -dx, -dy);
+                        if (dx > 0)
+                            paintArea(bg, painter, position, width - dx, 0, dx, height);
+                        else if (dx < 0)
+                            paintArea(bg, painter, position, 0, 0, -dx, height);
+                        if (dy > 0)
+                            paintArea(bg, painter, position, 0, height - dy, width, dy);
+                        else if (dy < 0)
+                            paintArea(bg, painter, position, 0, 0, width, -dy);
+                    }
+                    if (dirty != null) {
+                        Rectangle area = dirty.intersection(new Rectangle(position.x, position.y, width, height));
+                        if (!area.isEmpty())
+                            paintArea(bg, painter, position, area.x - position.x, area.y - position.y, area.width, area.height);
+                        dirty = null;
+                    }
+                }
+            } finally {
+                bg.dispose();
+            }
+            bufferX = mapPosition.x;
+            bufferY = mapPosition.y;
+            bufferZoom = getZoom();
+            bufferTileServer = getTileServer();
+            valid = true;
+            g.drawImage(image, 0, 0, null);
         }
 
-        long t1 = System.currentTimeMillis();
-        stats.dt = t1 - t0;
+        private void paintArea(Graphics2D bg, Painter painter, Point position, int x, int y, int width, int height) {
+            bg.setClip(x, y, width, height);
+            bg.setColor(getBackground());
+            bg.fillRect(x, y, width, height);
+            painter.paint(bg, position, null, x, y, width, height);
+            bg.setClip(null);
+        }
+
+        private void invalidateTile(TileServer tileServer, int x, int y, int z) {
+            if (!valid || tileServer != bufferTileServer || z > bufferZoom)
+                return;
+            // a tile from a lower zoom level may be standing in for several tiles of this one
+            int size = TILE_SIZE << (bufferZoom - z);
+            Rectangle area = new Rectangle(x * size, y * size, size, size);
+            if (dirty == null)
+                dirty = area;
+            else
+                dirty.add(area);
+        }
     }
 
 
@@ -791,42 +1100,39 @@ public class MapPanel extends JPanel {
         return String.format("%.5f", d);
     }
 
+    // the coordinate math is done by the tables of the Projection
+
     public static double getN(int y, int z) {
-        double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z);
-        return n;
+        return Projection.getN(y, z);
     }
 
     public static double position2lon(int x, int z) {
-        double xmax = TILE_SIZE * (1 << z);
-        return x / xmax * 360.0 - 180;
+        return Projection.position2lon(x, z);
     }
 
     public static double position2lat(int y, int z) {
-        double ymax = TILE_SIZE * (1 << z);
-        return Math.toDegrees(Math.atan(Math.sinh(Math.PI - (2.0 * Math.PI * y) / ymax)));
+        return Projection.position2lat(y, z);
     }
 
     public static double tile2lon(int x, int z) {
-        return x / Math.pow(2.0, z) * 360.0 - 180;
+        return Projection.tile2lon(x, z);
     }
 
     public static double tile2lat(int y, int z) {
-        return Math.toDegrees(Math.atan(Math.sinh(Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z))));
+        return Projection.tile2lat(y, z);
     }
 
     public static int lon2position(double lon, int z) {
-        double xmax = TILE_SIZE * (1 << z);
-        return (int) Math.floor((lon + 180) / 360 * xmax);
+        return Projection.lon2position(lon, z);
     }
 
     public static int lat2position(double lat, int z) {
-        double ymax = TILE_SIZE * (1 << z);
-        return (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * ymax);
+        return Projection.lat2position(lat, z);
     }
 
     public static String getTileNumber(TileServer tileServer, double lat, double lon, int zoom) {
-        int xtile = (int) Math.floor((lon + 180) / 360 * (1 << zoom));
-        int ytile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
+        int xtile = Projection.lon2tile(lon, zoom);
+        int ytile = Projection.lat2tile(lat, zoom);
         return getTileString(tileServer, xtile, ytile, zoom);
     }
 
@@ -952,21 +1258,22 @@ public class MapPanel extends JPanel {
         ZOOM_IN, ZOOM_OUT
     }
     
-    private static abstract class Animation implements ActionListener {
+    /**
+     * An animation of a fixed duration, stepped by the frame scheduler of the panel. The frame scheduler
+     * repaints the panel after every step.
+     */
+    private static abstract class Animation implements FrameScheduler.FrameCallback {
 
         private final AnimationType type;
-        private final Timer timer;
+        private final FrameScheduler scheduler;
         private long t0 = -1L;
         private long dt;
         private final long duration;
 
-        public Animation(AnimationType type, int fps, long duration) {
+        public Animation(AnimationType type, long duration, FrameScheduler scheduler) {
             this.type = type;
             this.duration = duration;
-            int delay = 1000 / fps;
-            timer = new Timer(delay, this);
-            timer.setCoalesce(true);
-            timer.setInitialDelay(0);
+            this.scheduler = scheduler;
         }
         
         public AnimationType getType() {
@@ -978,46 +1285,50 @@ public class MapPanel extends JPanel {
         protected abstract void onFrame();
 
         public double getFactor() {
-            return (double) getDt() / getDuration();
+            return Math.min(1d, (double) getDt() / getDuration());
         }
 
-        public void actionPerformed(ActionEvent e) {
-            if (getDt() >= duration) {
-                kill();
+        public boolean doFrame(long frameTime) {
+            if (t0 < 0)
+                t0 = frameTime;
+            dt = (frameTime - t0) / 1000000;
+            if (dt >= duration) {
                 onComplete();
-                return;
+                return false;
             }
             onFrame();
+            return true;
         }
 
         public long getDuration() {
             return duration;
         }
 
+        /**
+         * @return the milliseconds from the first frame of the animation to the current one.
+         */
         public long getDt() {
-            if (!timer.isRunning())
-                return dt;
-            long now = System.currentTimeMillis();
-            if (t0 < 0)
-                t0 = now;
-            return now - t0 + dt;
+            return dt;
         }
 
         public void run() {
-            if (timer.isRunning())
-                return;
-            timer.start();
+            scheduler.post(this);
         }
 
         public void kill() {
-            if (!timer.isRunning())
-                return;
-            dt = getDt();
-            timer.stop();
+            scheduler.remove(this);
+        }
+
+        /**
+         * Stop the animation and jump to its end state.
+         */
+        public void finish() {
+            kill();
+            onComplete();
         }
     }
 
-    private static class Tile {
+    static class Tile {
         private final String key;
         public final int x, y, z;
         public Tile(String tileServer, int x, int y, int z) {
@@ -1056,46 +1367,183 @@ public class MapPanel extends JPanel {
                 return false;
             return true;
         }
+        public String toString() {
+            return key + " " + z + "/" + x + "/" + y;
+        }
 
     }
 
-    private static class TileCache {
-        private LinkedHashMap<Tile,Image> map = new LinkedHashMap<Tile,Image>(CACHE_SIZE, 0.75f, true) {
-            protected boolean removeEldestEntry(java.util.Map.Entry<Tile,Image> eldest) {
-                boolean remove = size() > CACHE_SIZE;
-                return remove;
+    /**
+     * In-memory cache of decoded tiles, bounded by the number of bytes the decoded pixels take up rather than
+     * by the number of tiles.
+     * <p>
+     * Tiles handed out during the current frame (see {@link #nextFrame()}) are pinned: they are never evicted
+     * within their frame, so the visible viewport does not thrash. When the viewport alone is larger than the
+     * budget the cache goes over it until the next frame unpins those tiles. Everything else is evicted least
+     * recently used first.
+     * <p>
+     * Tiles are keyed by the index of their server and z/x/y packed into a long (see {@link #key}), held in
+     * an open-addressing map, so looking up a tile allocates nothing and hashes no strings.
+     */
+    public static final class TileCache {
+        private static final class Entry {
+            private final Image image;
+            private final int bytes;
+            private int frame;
+
+            private Entry(Image image, int bytes, int frame) {
+                this.image = image;
+                this.bytes = bytes;
+                this.frame = frame;
             }
-        };
+        }
+
+        private final LongLruMap<Entry> map = new LongLruMap<Entry>(CACHE_SIZE);
+        private long maxBytes = CACHE_BYTES;
+        private long bytes;
+        private int frame;
+        private long hits, misses, evictions;
+
+        TileCache() {
+        }
+
+        /**
+         * Packs a tile into a cache key: 12 bits server index, 6 bits zoom and 23 bits each for x and y.
+         */
+        static long key(TileServer tileServer, int x, int y, int z) {
+            return ((long) tileServer.getIndex() << 52) | ((long) z << 46) | ((long) x << 23) | y;
+        }
+
         public void put(TileServer tileServer, int x, int y, int z, Image image) {
-            map.put(new Tile(tileServer.getURL(), x, y, z), image);
+            Entry entry = new Entry(image, imageBytes(image), frame);
+            Entry old = map.put(key(tileServer, x, y, z), entry);
+            if (old != null)
+                bytes -= old.bytes;
+            bytes += entry.bytes;
+            trim();
+        }
+
+        /**
+         * @return true if the tile is cached. Does not count as a hit or miss, nor pin the tile.
+         */
+        public boolean contains(TileServer tileServer, int x, int y, int z) {
+            return map.peek(key(tileServer, x, y, z)) != null;
+        }
+
+        /**
+         * Look up a tile that stands in for another one. Does not count as a hit or miss, and does not
+         * change the eviction order, but does pin the tile for the current frame.
+         */
+        Image peek(TileServer tileServer, int x, int y, int z) {
+            Entry entry = map.peek(key(tileServer, x, y, z));
+            if (entry == null)
+                return null;
+            entry.frame = frame;
+            return entry.image;
         }
+
         public Image get(TileServer tileServer, int x, int y, int z) {
-            //return map.get(new Tile(x, y, z));
-            Image image = map.get(new Tile(tileServer.getURL(), x, y, z));
-            return image;
+            Entry entry = map.get(key(tileServer, x, y, z));
+            if (entry == null) {
+                ++misses;
+                return null;
+            }
+            ++hits;
+            entry.frame = frame;
+            return entry.image;
         }
+
+        /**
+         * Start a new frame. Tiles handed out by {@link #get} from now on are pinned until the next frame.
+         */
+        void nextFrame() {
+            ++frame;
+        }
+
         public int getSize() {
             return map.size();
         }
-    }
 
-    private static class Stats {
-        private int tileCount;
-        private long dt;
-        private Stats() {
-            reset();
+        /**
+         * @return the number of bytes taken up by the decoded pixels of all cached tiles.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            trim();
+        }
+
+        public long getHits() {
+            return hits;
         }
-        private void reset() {
-            tileCount = 0;
-            dt = 0;
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRatio() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        public void resetCounters() {
+            hits = misses = evictions = 0;
+        }
+
+        private void trim() {
+            int slot = map.eldest();
+            while (bytes > maxBytes && slot != -1) {
+                int next = map.newer(slot);
+                Entry entry = map.value(slot);
+                if (entry.frame != frame) {
+                    map.removeAt(slot);
+                    bytes -= entry.bytes;
+                    ++evictions;
+                }
+                slot = next;
+            }
+        }
+
+        private static int imageBytes(Image image) {
+            if (image instanceof BufferedImage) {
+                DataBuffer data = ((BufferedImage) image).getRaster().getDataBuffer();
+                return data.getNumBanks() * data.getSize() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+            }
+            int width = image.getWidth(null);
+            int height = image.getHeight(null);
+            if (width < 0 || height < 0)
+                width = height = TILE_SIZE;
+            return width * height * 4;
         }
     }
-    
+
    //OLAV: Fjernet CustomSplitScreen
     private class DragListener extends MouseAdapter implements MouseMotionListener, MouseWheelListener {
         private Point mouseCoords;
         private Point downCoords;
         private Point downPosition;
+        // the drag position of the current frame, applied once when the frame runs
+        private int dragX, dragY;
+        private long dragWhen, lastMoveWhen;
+        private boolean dragPending;
+        private Fling fling;
+        private final FrameScheduler.FrameCallback dragFrame = new FrameScheduler.FrameCallback() {
+            public boolean doFrame(long frameTime) {
+                applyDrag();
+                return false;
+            }
+        };
 
         public DragListener() {
             mouseCoords = new Point();
@@ -1113,9 +1561,13 @@ public class MapPanel extends JPanel {
         }
 
         public void mousePressed(MouseEvent e) {
+            stopFling();
             if (e.getButton() == MouseEvent.BUTTON1) {
                 downCoords = e.getPoint();
                 downPosition = getMapPosition();
+                dragX = downPosition.x;
+                dragY = downPosition.y;
+                lastMoveWhen = e.getWhen();
             } else if (e.getButton() == MouseEvent.BUTTON3) {
                 int cx = getCursorPosition().x;
                 int cy = getCursorPosition().y;
@@ -1127,6 +1579,10 @@ public class MapPanel extends JPanel {
         public void mouseReleased(MouseEvent e) {
             //setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
             handleDrag(e);
+            applyDrag();
+            if (downCoords != null && e.getWhen() - lastMoveWhen <= FLING_MAX_IDLE_MS)
+                startFling(prefetcher.getVelocityX(), prefetcher.getVelocityY());
+            prefetcher.onPanEnd();
             downCoords = null;
             downPosition = null;
             magnifyRegion = null;
@@ -1135,19 +1591,12 @@ public class MapPanel extends JPanel {
         public void mouseMoved(MouseEvent e) {
             handlePosition(e);
             
-            for(int i =0; i<getMarkers().length; i++) {
-            	int x = lon2position(getMarkers()[i].getLongitude(), getZoom());
-            	int y = lat2position(getMarkers()[i].getLatitude(), getZoom());
-            	int mx =mapPosition.x+e.getX();
-            	int my= mapPosition.y +e.getY();
-            	
-            	if(x < mx+7 && x > mx-7 && y < my+7 && y > my-14) {
-            		if(!(getMarkers()[i].getId() == 0)) {
-            			setToolTipText("" +getMarkers()[i].getId());
-            		}	
-            	}
-            	ToolTipManager.sharedInstance().mouseMoved(e);
-            }
+            if (getMarkers().length == 0)
+                return;
+            int hit = overlayPainter.findMarker(mapPosition.x + e.getX(), mapPosition.y + e.getY(), getZoom());
+            if (hit >= 0)
+                setToolTipText("" + getMarkers()[hit].getId());
+            ToolTipManager.sharedInstance().mouseMoved(e);
         }
 
         public void mouseDragged(MouseEvent e) {
@@ -1167,15 +1616,23 @@ public class MapPanel extends JPanel {
         private void handlePosition(MouseEvent e) {
             mouseCoords = e.getPoint();
             if (overlayPanel.isVisible())
-                MapPanel.this.repaint();
+                frameScheduler.requestFrame();
         }
 
         private void handleDrag(MouseEvent e) {
             if (downCoords != null) {
-                int tx = downCoords.x - e.getX();
-                int ty = downCoords.y - e.getY();
-                setMapPosition(downPosition.x + tx, downPosition.y + ty);
-                repaint();
+                int x = downPosition.x + downCoords.x - e.getX();
+                int y = downPosition.y + downCoords.y - e.getY();
+                if (x != dragX || y != dragY)
+                    lastMoveWhen = e.getWhen();
+                dragX = x;
+                dragY = y;
+                dragWhen = e.getWhen();
+                prefetcher.track(x, y, dragWhen);
+                if (!dragPending) {
+                    dragPending = true;
+                    frameScheduler.post(dragFrame);
+                }
             } else if (magnifyRegion != null) {
                 int cx = getCursorPosition().x;
                 int cy = getCursorPosition().y;
@@ -1184,6 +1641,44 @@ public class MapPanel extends JPanel {
             }
         }
 
+        /**
+         * Move the map to the last drag position, once per frame however many drag events came in.
+         */
+        private void applyDrag() {
+            if (!dragPending)
+                return;
+            dragPending = false;
+            frameScheduler.remove(dragFrame);
+            // a zoom may have ended the drag since the position was collected
+            if (downCoords == null)
+                return;
+            setMapPosition(dragX, dragY);
+            prefetcher.onPan(mapPosition.x, mapPosition.y, dragWhen);
+        }
+
+        /**
+         * Drop the drag position waiting for the next frame.
+         */
+        private void cancelDrag() {
+            dragPending = false;
+            frameScheduler.remove(dragFrame);
+        }
+
+        private void startFling(double vx, double vy) {
+            if (Math.hypot(vx, vy) < FLING_MIN_SPEED)
+                return;
+            fling = new Fling(vx, vy);
+            prefetcher.onFling(mapPosition.x, mapPosition.y, vx * FLING_TIME_CONSTANT_MS, vy * FLING_TIME_CONSTANT_MS);
+            frameScheduler.post(fling);
+        }
+
+        private void stopFling() {
+            if (fling == null)
+                return;
+            frameScheduler.remove(fling);
+            fling = null;
+        }
+
         public void mouseWheelMoved(MouseWheelEvent e) {
             int rotation = e.getWheelRotation();
             if (rotation < 0)
@@ -1192,6 +1687,40 @@ public class MapPanel extends JPanel {
                 zoomOutAnimated(new Point(mouseCoords.x, mouseCoords.y));
         }
     }
+
+    /**
+     * Keeps the map moving after a drag was released, slowing down until it stops.
+     */
+    private final class Fling implements FrameScheduler.FrameCallback {
+        private double x, y, vx, vy;
+        private long last = -1;
+
+        private Fling(double vx, double vy) {
+            this.x = mapPosition.x;
+            this.y = mapPosition.y;
+            this.vx = vx;
+            this.vy = vy;
+        }
+
+        public boolean doFrame(long frameTime) {
+            if (last >= 0) {
+                double dt = (frameTime - last) / 1e6;
+                double decay = Math.exp(-dt / FLING_TIME_CONSTANT_MS);
+                // the exact distance covered by the decaying velocity during dt
+                x += vx * FLING_TIME_CONSTANT_MS * (1 - decay);
+                y += vy * FLING_TIME_CONSTANT_MS * (1 - decay);
+                vx *= decay;
+                vy *= decay;
+                setMapPosition((int) Math.round(x), (int) Math.round(y));
+            }
+            last = frameTime;
+            if (Math.hypot(vx, vy) < FLING_STOP_SPEED) {
+                mouseListener.fling = null;
+                return false;
+            }
+            return true;
+        }
+    }
     
     /**
      * Olav<p>
@@ -1217,95 +1746,22 @@ public class MapPanel extends JPanel {
         
        
         private void paintOverlay(Graphics2D g) {
-        		for(Entry<String, Route> entry : getRoutes()) {
-        			drawLine(g, lon2position(entry.getValue().getStartDestination().getLongitude(), getZoom()),
-        					lat2position(entry.getValue().getStartDestination().getLatitude(), getZoom()),
-        					lon2position(entry.getValue().getEndDestination().getLongitude(), getZoom()),
-        					lat2position(entry.getValue().getEndDestination().getLatitude(), getZoom()));
-        		
-        		
+        		// the visible area in map coordinates, everything outside it is culled before drawing
+        		Rectangle view = g.getClipBounds();
+        		if(view == null) {
+        			view = new Rectangle(0, 0, getWidth(), getHeight());
         		}
-        		//setStroke (new BasicStroke (2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f));
-            	//g.setPaint(Color.RED);
-            	//g.setRenderingHint (RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        		//g.drawArc(0, 0, 500, 400, 90, 50);
-        		//g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,1f));
-        	
-        }
-        
-        
-        private void drawLine(Graphics2D g, int x1, int y1, int x2, int y2) {
-        	g.setStroke (new BasicStroke (2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f));
-        	g.setPaint(Color.RED);
-        	g.setRenderingHint (RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        	g.drawArc(x1-mapPosition.x, y1-mapPosition.y, 200, 400, 20, 30);
-        	//g.drawLine(x1-mapPosition.x, y1-mapPosition.y, x2-mapPosition.x, y2-mapPosition.y);
-        }
-        
-		/**
-		 * Paint markers draws polygon-markers on the map. If either the mList length exceed the MAX_MARKER_COUNT or
-		 * the zoom level of the map is under 10 it draws an circle to indicate where the herd is.
-		 * 
-		 * If mlist length is below the MAX_MARKER_COUNT or the zoom is over 10 it draws individual markers of each
-		 * mList entry. The method does this by iterating over the array and generating a polygon drawn on the 
-		 * map. setPaint, fill, setStroke, rendringHint codelines enhances the look of a marker.
-		 * @param g
-		 * @param mList
-		 */
-        private void paintMarkers(Graphics2D g, Marker[] mList) {
-        	if(getZoom() > 10) {
-        		for(int i = 0; i< mList.length; i++) {
-            		Polygon triangle = createMarkerPolygon(mList[i].getLongitude(), mList[i].getLatitude());
-            		 g.setPaint(Color.RED);
-                     g.fill(triangle);
-                     g.setPaint(Color.BLACK);
-                     g.setStroke (new BasicStroke (3.0f, BasicStroke.CAP_BUTT,
-                             BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f));
-                     g.setRenderingHint (RenderingHints.KEY_ANTIALIASING,
-                             RenderingHints.VALUE_ANTIALIAS_ON);
-                     g.drawPolygon(triangle); 	
-            	}
-        	}
-        	else {
-        		int radius = 30*getZoom();
-        		int x = lon2position(mList[0].getLongitude(), getZoom());
-                int y = lat2position(mList[0].getLatitude(), getZoom());
-                g.setRenderingHint (RenderingHints.KEY_ANTIALIASING,
-                        RenderingHints.VALUE_ANTIALIAS_ON);
-                g.setStroke (new BasicStroke (3.0f, BasicStroke.CAP_BUTT,
-                        BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f));
-                g.setPaint(Color.RED);
-        		g.drawOval( x- mapPosition.x -radius/2, y - mapPosition.y - radius/2, radius, radius);
-        		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,(float)0.2f));
-        		g.fillOval(x-mapPosition.x - radius/2,y- mapPosition.y-radius/2 , radius, radius);
-        	}
+        		view.translate(mapPosition.x, mapPosition.y);
+        		overlayPainter.paint(g, mapPosition, view, getZoom(), stats);
         }
-        
-        
-       /**
-        * createMarkerPolygon change the longitude and latitude of a point to 4 corners of  of a polygon, creates
-        * the polygon and returns it.
-        * @param longitude - the longitude of the marker
-        * @param latitude  - the latitude of the marker
-        * @return A polygon triangle fitted to the map.
-        */
-       private Polygon createMarkerPolygon(double longitude, double latitude) {
-    	   int x = lon2position(longitude, getZoom());
-           int y = lat2position(latitude, getZoom());
-           Point p1 = new Point(x-8 -mapPosition.x, y-20 -mapPosition.y);
-           Point p2 = new Point(x-mapPosition.x,y -mapPosition.y);
-           Point p3 = new Point(x +8 -mapPosition.x, y-20 -mapPosition.y);
-           Point p4 = new Point(x  -mapPosition.x, y-25 -mapPosition.y);
-           int[] xVertex = { p1.x, p2.x, p3.x, p4.x };
-           int[] yVertex = { p1.y, p2.y, p3.y, p4.y };
-           	return new Polygon(xVertex, yVertex, xVertex.length);
-       }
     }
  // ENDOVERLAYMARKERPANEL ----------------------------------------------------------------
     
     public final class OverlayPanel extends JPanel {
 
 public static final double TILE_IN_METERS = 5545984;
+
+        private Font font;
     	
         private OverlayPanel() {
             setOpaque(false);
@@ -1325,15 +1781,37 @@ public static final double TILE_IN_METERS = 5545984;
 
         private void paintOverlay(Graphics2D g) {
         	int scaleLength = ((TILE_SIZE)/2)+16;
-        	Font font = new Font(g.getFont().getFontName(), Font. PLAIN, 12);
+        	if(font == null) {
+        		font = new Font(g.getFont().getFontName(), Font. PLAIN, 12);
+        	}
         	g.setFont(font);
             g.setColor(Color.black);
             g.drawString( (int)(TILE_IN_METERS/ Math.pow(2, getZoom()-1)) + " meter", 20, 180);
-            g.setStroke (new BasicStroke (2.0f, BasicStroke.CAP_BUTT,
-                    BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f));
+            g.setStroke(SCALE_STROKE);
             g.drawLine(10, this.getHeight()-20, scaleLength,  this.getHeight()-20);
             g.drawLine(10, this.getHeight()-30, 10, this.getHeight()-10);
             g.drawLine(scaleLength, this.getHeight()-30, scaleLength, this.getHeight()-10);
+            if(showStats) {
+            	paintStats(g);
+            }
+        }
+
+        /**
+         * Draws the render stats as lines of text above the scale, percentiles in milliseconds.
+         */
+        private void paintStats(Graphics2D g) {
+        	int y = 20;
+        	y = drawStatsLine(g, y, String.format("frame   p50 %.1f  p95 %.1f  p99 %.1f", stats.getFrameP50(), stats.getFrameP95(), stats.getFrameP99()));
+        	y = drawStatsLine(g, y, String.format("tiles   p50 %.1f  p95 %.1f  p99 %.1f", stats.getTilePassP50(), stats.getTilePassP95(), stats.getTilePassP99()));
+        	y = drawStatsLine(g, y, String.format("routes  p50 %.1f  p95 %.1f  p99 %.1f", stats.getOverlayPassP50(), stats.getOverlayPassP95(), stats.getOverlayPassP99()));
+        	y = drawStatsLine(g, y, String.format("markers p50 %.1f  p95 %.1f  p99 %.1f", stats.getMarkerPassP50(), stats.getMarkerPassP95(), stats.getMarkerPassP99()));
+        	y = drawStatsLine(g, y, String.format("%d tiles painted, %d fetching, %.0f%% cache hits", stats.getTileCount(), stats.getPendingTiles(), 100 * stats.getCacheHitRatio()));
+        	drawStatsLine(g, y, stats.getFrameCount() + " frames, " + stats.getDroppedFrames() + " dropped in animations");
+        }
+
+        private int drawStatsLine(Graphics2D g, int y, String text) {
+        	g.drawString(text, 10, y);
+        	return y + 16;
         }
 
     }
@@ -1594,11 +2072,16 @@ public static final double TILE_IN_METERS = 5545984;
                 JMenu tileServerMenu = new JMenu("Kartlag");
                 tileServerMenu.setMnemonic(KeyEvent.VK_T);
                 ButtonGroup bg = new ButtonGroup();
-                for (final TileServer curr : TILESERVERS) {
-                    JCheckBoxMenuItem item = new JCheckBoxMenuItem(curr.getURL());
+                for (final TileServer curr : getTileServers()) {
+                    final JCheckBoxMenuItem item = new JCheckBoxMenuItem(curr.getName());
                     bg.add(item);
                     
                     item.setSelected(curr.equals(mapPanel.getTileServer()));
+                    mapPanel.addPropertyChangeListener("tileServer", new PropertyChangeListener() {
+                        public void propertyChange(PropertyChangeEvent evt) {
+                            item.setSelected(curr.equals(evt.getNewValue()));
+                        }
+                    });
                     item.addActionListener(new ActionListener() {
                         public void actionPerformed(ActionEvent e) {
                             mapPanel.setTileServer(curr);
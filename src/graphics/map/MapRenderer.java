@@ -0,0 +1,193 @@
+package graphics.map;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import graphics.map.MapPanel.Painter;
+import graphics.map.MapPanel.TileCache;
+import graphics.map.MapPanel.TileServer;
+import routes.Route;
+
+/**
+ * Renders map images offscreen, for example to export snapshots of the route network on a server
+ * without a display. An image shows an area of the map at one zoom level, with routes and markers drawn
+ * over the tiles the way the {@link MapPanel} draws them.
+ * <p>
+ * Rendering needs no Swing component and never touches the event dispatch thread, so any number of
+ * images can be rendered at the same time: {@link #render} renders on the calling thread, and
+ * {@link #submit} on the worker pool of the renderer. Tiles are loaded on the rendering thread, from the
+ * pack of the tile server, the {@link DiskTileCache} or the tile server itself, and kept in a
+ * {@link TileCache} shared by all renders. A tile that can not be loaded is painted as a placeholder.
+ */
+public final class MapRenderer {
+
+    private static final Logger log = Logger.getLogger(MapRenderer.class.getName());
+
+    private static final Color BACKGROUND = new Color(0xc0, 0xc0, 0xc0);
+
+    private final TileServer tileServer;
+    // guarded by itself, the cache is not thread safe
+    private final TileCache cache = new TileCache();
+    private volatile DiskTileCache diskCache = DiskTileCache.getDefault();
+    private final ExecutorService executor;
+
+    /**
+     * @param threads - the number of images {@link #submit} renders at the same time
+     */
+    public MapRenderer(TileServer tileServer, int threads) {
+        this.tileServer = tileServer;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MapRenderer-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public TileServer getTileServer() {
+        return tileServer;
+    }
+
+    /**
+     * @return the in-memory cache of the renderer. Lock it while using it.
+     */
+    public TileCache getCache() {
+        return cache;
+    }
+
+    public DiskTileCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * @param diskCache - the cache to read tiles from and write downloaded tiles to, null for none
+     */
+    public void setDiskCache(DiskTileCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Render an image on the worker pool.
+     * @see #render(double, double, double, double, int, int, int, Collection, Marker[])
+     */
+    public Future<BufferedImage> submit(final double west, final double south, final double east, final double north,
+            final int zoom, final int width, final int height, final Collection<Route> routes, final Marker[] markers) {
+        return executor.submit(new Callable<BufferedImage>() {
+            public BufferedImage call() {
+                return render(west, south, east, north, zoom, width, height, routes, markers);
+            }
+        });
+    }
+
+    /**
+     * Render an image of width x height pixels centered on a bounding box. The image shows more than the
+     * box if it is larger than the box at the given zoom level, and less if it is smaller; see
+     * {@link #fitZoom} for the zoom level at which the box fills the image.
+     * @param routes - the routes to draw, may be null
+     * @param markers - the markers to draw, may be null
+     */
+    public BufferedImage render(double west, double south, double east, double north, int zoom, int width, int height,
+            Collection<Route> routes, Marker[] markers) {
+        if (zoom < 0 || zoom > tileServer.getMaxZoom())
+            throw new IllegalArgumentException("zoom " + zoom + " is not served by " + tileServer);
+        int centerX = (Projection.lon2position(west, zoom) + Projection.lon2position(east, zoom)) / 2;
+        int centerY = (Projection.lat2position(north, zoom) + Projection.lat2position(south, zoom)) / 2;
+        Point mapPosition = new Point(centerX - width / 2, centerY - height / 2);
+
+        TileCache tiles = loadTiles(mapPosition, zoom, width, height);
+        OverlayPainter overlay = new OverlayPainter();
+        overlay.setRoutes(routes == null ? Collections.<Route> emptyList() : routes);
+        overlay.setMarkers(markers == null ? new Marker[0] : markers);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, width, height);
+            new Painter(tiles, tileServer, zoom, width, height).paint(g, mapPosition, null);
+            overlay.paint(g, mapPosition, new Rectangle(mapPosition.x, mapPosition.y, width, height), zoom, null);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * @return the highest zoom level, up to the maximum of the tile server, at which the bounding box fits
+     * in an image of width x height pixels.
+     */
+    public int fitZoom(double west, double south, double east, double north, int width, int height) {
+        for (int zoom = tileServer.getMaxZoom(); zoom > 0; --zoom) {
+            int w = Projection.lon2position(east, zoom) - Projection.lon2position(west, zoom);
+            int h = Projection.lat2position(south, zoom) - Projection.lat2position(north, zoom);
+            if (w <= width && h <= height)
+                return zoom;
+        }
+        return 0;
+    }
+
+    /**
+     * Stop the worker pool. Renders already submitted still complete.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Collects the tiles of the area in a cache of its own, loading the ones the shared cache misses. The
+     * painter reads from that cache, so the shared one is only locked briefly and can not evict a tile
+     * while the image is painted.
+     */
+    private TileCache loadTiles(Point mapPosition, int zoom, int width, int height) {
+        TileCache tiles = new TileCache();
+        tiles.setMaxBytes(Long.MAX_VALUE);
+        int n = 1 << zoom;
+        int x0 = Math.max(0, (int) Math.floor((double) mapPosition.x / MapPanel.TILE_SIZE));
+        int y0 = Math.max(0, (int) Math.floor((double) mapPosition.y / MapPanel.TILE_SIZE));
+        int x1 = Math.min(n - 1, (int) Math.floor((double) (mapPosition.x + width - 1) / MapPanel.TILE_SIZE));
+        int y1 = Math.min(n - 1, (int) Math.floor((double) (mapPosition.y + height - 1) / MapPanel.TILE_SIZE));
+        synchronized (cache) {
+            // unpins the tiles of earlier renders, which hold on to theirs in their own cache
+            cache.nextFrame();
+        }
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                Image image;
+                synchronized (cache) {
+                    image = cache.get(tileServer, x, y, zoom);
+                }
+                if (image == null) {
+                    try {
+                        image = TileLoader.load(tileServer, x, y, zoom, diskCache);
+                    } catch (IOException e) {
+                        log.log(Level.FINE, "failed to load tile " + zoom + "/" + x + "/" + y, e);
+                    }
+                    if (image == null)
+                        continue;
+                    synchronized (cache) {
+                        cache.put(tileServer, x, y, zoom, image);
+                    }
+                }
+                tiles.put(tileServer, x, y, zoom, image);
+            }
+        }
+        return tiles;
+    }
+}
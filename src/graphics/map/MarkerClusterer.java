@@ -0,0 +1,203 @@
+package graphics.map;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the markers into clusters, one set of clusters per zoom level.
+ * <p>
+ * At {@link #MAX_ZOOM} the projected markers from the {@link ProjectionCache} are bucketed into square
+ * cells of {@link #CELL_SIZE} map pixels, every non empty cell becoming one cluster placed at the mean
+ * position of its markers. One zoom level further out a cell covers exactly four cells of the level
+ * below, so each level is built by merging the clusters of the level below rather than by looking at
+ * the markers again: the clusters nest, and a cluster never splits into markers of another cluster
+ * when zooming in. Since the panel draws at most one cluster per cell, the number of clusters on
+ * screen is bounded by the size of the panel, however many markers there are.
+ * <p>
+ * Levels are built the first time they are asked for, and dropped when the markers change.
+ */
+final class MarkerClusterer {
+
+    static final int CELL_SIZE = 64;
+
+    /**
+     * The deepest level that is clustered, above it every marker is drawn on its own.
+     */
+    static final int MAX_ZOOM = 15;
+
+    private static final int CELL_BITS = 20;
+    private static final int INDEX_BITS = 24;
+
+    /**
+     * The clusters of one zoom level, sorted by cell. x[i] and y[i] are the map coordinates of cluster
+     * i, count[i] the number of markers in it and marker[i] the highest marker index among them.
+     */
+    static final class Clusters {
+        final long[] cells;
+        final int[] x, y, count, marker;
+
+        private Clusters(int n) {
+            cells = new long[n];
+            x = new int[n];
+            y = new int[n];
+            count = new int[n];
+            marker = new int[n];
+        }
+
+        int size() {
+            return cells.length;
+        }
+    }
+
+    private final ProjectionCache projection;
+    private final Clusters[] levels = new Clusters[MAX_ZOOM + 1];
+    private int[] hits = new int[64];
+
+    MarkerClusterer(ProjectionCache projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Drop the clusters, after the markers of the projection cache changed.
+     */
+    void invalidate() {
+        Arrays.fill(levels, null);
+    }
+
+    /**
+     * @return the clusters of a zoom level between 0 and {@link #MAX_ZOOM}.
+     */
+    Clusters clusters(int zoom) {
+        Clusters clusters = levels[zoom];
+        if (clusters == null) {
+            clusters = zoom == MAX_ZOOM ? build() : merge(clusters(zoom + 1));
+            levels[zoom] = clusters;
+        }
+        return clusters;
+    }
+
+    /**
+     * Find the clusters lying in the cells that a rectangle touches.
+     * @return the number of clusters found, their indices are the first entries of {@link #hits()}.
+     */
+    int query(int zoom, int x0, int y0, int x1, int y1) {
+        Clusters clusters = clusters(zoom);
+        int count = 0;
+        int cy0 = cell(y0), cy1 = cell(y1);
+        for (int cx = cell(x0); cx <= cell(x1); ++cx) {
+            // the cells of one column are consecutive keys
+            int i = Arrays.binarySearch(clusters.cells, cellKey(cx, cy0));
+            if (i < 0)
+                i = -i - 1;
+            long last = cellKey(cx, cy1);
+            for (; i < clusters.cells.length && clusters.cells[i] <= last; ++i) {
+                if (count == hits.length)
+                    hits = Arrays.copyOf(hits, count * 2);
+                hits[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the result buffer of the last {@link #query}, only valid until the next one.
+     */
+    int[] hits() {
+        return hits;
+    }
+
+    private Clusters build() {
+        ProjectionCache.Points points = projection.markers(MAX_ZOOM);
+        int n = Math.min(points.x.length, 1 << INDEX_BITS);
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; ++i)
+            sorted[i] = (cellKey(cell(points.x[i]), cell(points.y[i])) << INDEX_BITS) | i;
+        Arrays.sort(sorted);
+        Clusters clusters = new Clusters(runs(sorted));
+        long sumX = 0, sumY = 0;
+        int c = -1;
+        for (int i = 0; i < n; ++i) {
+            long key = sorted[i] >>> INDEX_BITS;
+            int m = index(sorted[i]);
+            if (c < 0 || clusters.cells[c] != key) {
+                if (c >= 0)
+                    place(clusters, c, sumX, sumY);
+                clusters.cells[++c] = key;
+                clusters.marker[c] = m;
+                sumX = sumY = 0;
+            }
+            sumX += points.x[m];
+            sumY += points.y[m];
+            clusters.count[c]++;
+            clusters.marker[c] = Math.max(clusters.marker[c], m);
+        }
+        if (c >= 0)
+            place(clusters, c, sumX, sumY);
+        return clusters;
+    }
+
+    private static Clusters merge(Clusters below) {
+        int n = below.size();
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; ++i)
+            sorted[i] = (parentKey(below.cells[i]) << INDEX_BITS) | i;
+        Arrays.sort(sorted);
+        Clusters clusters = new Clusters(runs(sorted));
+        long sumX = 0, sumY = 0;
+        int c = -1;
+        for (int i = 0; i < n; ++i) {
+            long key = sorted[i] >>> INDEX_BITS;
+            int j = index(sorted[i]);
+            if (c < 0 || clusters.cells[c] != key) {
+                if (c >= 0)
+                    place(clusters, c, sumX, sumY);
+                clusters.cells[++c] = key;
+                clusters.marker[c] = below.marker[j];
+                sumX = sumY = 0;
+            }
+            sumX += (long) below.x[j] * below.count[j];
+            sumY += (long) below.y[j] * below.count[j];
+            clusters.count[c] += below.count[j];
+            clusters.marker[c] = Math.max(clusters.marker[c], below.marker[j]);
+        }
+        if (c >= 0)
+            place(clusters, c, sumX, sumY);
+        // one level out every coordinate is halved
+        for (int i = 0; i < clusters.size(); ++i) {
+            clusters.x[i] /= 2;
+            clusters.y[i] /= 2;
+        }
+        return clusters;
+    }
+
+    private static void place(Clusters clusters, int c, long sumX, long sumY) {
+        clusters.x[c] = (int) (sumX / clusters.count[c]);
+        clusters.y[c] = (int) (sumY / clusters.count[c]);
+    }
+
+    private static int runs(long[] sorted) {
+        int runs = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || (sorted[i] >>> INDEX_BITS) != (sorted[i - 1] >>> INDEX_BITS))
+                ++runs;
+        }
+        return runs;
+    }
+
+    private static int index(long packed) {
+        return (int) (packed & ((1 << INDEX_BITS) - 1));
+    }
+
+    static int cell(int position) {
+        return Math.max(0, Math.min((1 << CELL_BITS) - 1, position / CELL_SIZE));
+    }
+
+    static long cellKey(int cx, int cy) {
+        return ((long) cx << CELL_BITS) | cy;
+    }
+
+    private static long parentKey(long key) {
+        int cx = (int) (key >>> CELL_BITS);
+        int cy = (int) (key & ((1 << CELL_BITS) - 1));
+        return cellKey(cx >> 1, cy >> 1);
+    }
+}
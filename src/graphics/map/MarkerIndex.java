@@ -0,0 +1,175 @@
+package graphics.map;
+
+import java.util.Arrays;
+
+/**
+ * Grid index over the projected positions of the markers, used to find the marker under the mouse and
+ * the markers inside the viewport.
+ * <p>
+ * For every zoom level the projected markers from the {@link ProjectionCache} are bucketed into square
+ * cells of {@link #CELL_SIZE} map pixels. The cells are stored as a sorted array of cell keys with the
+ * markers of each cell in one contiguous run, so a lookup is a binary search per touched cell and
+ * allocates nothing.
+ * The grid of a zoom level is built the first time that level is queried, and all grids are dropped
+ * when the markers change.
+ */
+final class MarkerIndex {
+
+    static final int CELL_SIZE = 64;
+
+    // a cell key and a marker index are packed into the 63 bits of a positive long
+    private static final int CELL_BITS = 20;
+    private static final int INDEX_BITS = 63 - 2 * CELL_BITS;
+    static final int MAX_ZOOM = CELL_BITS + 6 - 8;
+
+    private final ProjectionCache projection;
+    private final Grid[] grids = new Grid[MAX_ZOOM + 1];
+    private int[] hits = new int[64];
+
+    private static final class Grid {
+        private ProjectionCache.Points points;
+        private long[] cellKeys;
+        private int[] cellStart;
+        private int[] items;
+    }
+
+    MarkerIndex(ProjectionCache projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Drop the grids, after the markers of the projection cache changed.
+     */
+    void invalidate() {
+        Arrays.fill(grids, null);
+    }
+
+    /**
+     * Find the marker under a point: a marker is hit when its position lies less than 7 pixels left or
+     * right of the point, and between 14 pixels above and 7 pixels below it.
+     * @param mx - x of the point in map coordinates
+     * @param my - y of the point in map coordinates
+     * @return the index of the last marker with an id covering the point, or -1.
+     */
+    int findMarker(int mx, int my, int zoom) {
+        Marker[] markers = projection.getMarkers();
+        if (markers.length == 0 || zoom < 0 || zoom > MAX_ZOOM)
+            return -1;
+        Grid grid = grid(zoom);
+        int found = -1;
+        int cx0 = cell(mx - 7), cx1 = cell(mx + 7);
+        int cy0 = cell(my - 14), cy1 = cell(my + 7);
+        for (int cx = cx0; cx <= cx1; ++cx) {
+            for (int cy = cy0; cy <= cy1; ++cy) {
+                int c = Arrays.binarySearch(grid.cellKeys, cellKey(cx, cy));
+                if (c < 0)
+                    continue;
+                for (int i = grid.cellStart[c]; i < grid.cellStart[c + 1]; ++i) {
+                    int m = grid.items[i];
+                    int x = grid.points.x[m], y = grid.points.y[m];
+                    if (m > found && x < mx + 7 && x > mx - 7 && y < my + 7 && y > my - 14 && markers[m].getId() != 0)
+                        found = m;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the markers inside a rectangle, the edges included.
+     * @return the number of markers found, their indices are the first entries of {@link #hits()} in
+     * increasing order.
+     */
+    int findMarkers(int x0, int y0, int x1, int y1, int zoom) {
+        int count = 0;
+        if (zoom > MAX_ZOOM) {
+            // beyond the grids, look at every marker
+            ProjectionCache.Points points = projection.markers(zoom);
+            for (int m = 0; m < points.x.length; ++m) {
+                if (points.x[m] >= x0 && points.x[m] <= x1 && points.y[m] >= y0 && points.y[m] <= y1)
+                    count = hit(count, m);
+            }
+            return count;
+        }
+        if (projection.getMarkers().length == 0 || zoom < 0)
+            return 0;
+        Grid grid = grid(zoom);
+        for (int cx = cell(x0); cx <= cell(x1); ++cx) {
+            for (int cy = cell(y0); cy <= cell(y1); ++cy) {
+                int c = Arrays.binarySearch(grid.cellKeys, cellKey(cx, cy));
+                if (c < 0)
+                    continue;
+                for (int i = grid.cellStart[c]; i < grid.cellStart[c + 1]; ++i) {
+                    int m = grid.items[i];
+                    int x = grid.points.x[m], y = grid.points.y[m];
+                    if (x >= x0 && x <= x1 && y >= y0 && y <= y1)
+                        count = hit(count, m);
+                }
+            }
+        }
+        Arrays.sort(hits, 0, count);
+        return count;
+    }
+
+    /**
+     * @return the result buffer of the last {@link #findMarkers}, only valid until the next one.
+     */
+    int[] hits() {
+        return hits;
+    }
+
+    private int hit(int count, int m) {
+        if (count == hits.length)
+            hits = Arrays.copyOf(hits, count * 2);
+        hits[count] = m;
+        return count + 1;
+    }
+
+    private Grid grid(int zoom) {
+        Grid grid = grids[zoom];
+        if (grid == null) {
+            grid = build(zoom);
+            grids[zoom] = grid;
+        }
+        return grid;
+    }
+
+    private Grid build(int zoom) {
+        Grid grid = new Grid();
+        grid.points = projection.markers(zoom);
+        int n = Math.min(grid.points.x.length, 1 << INDEX_BITS);
+        // cell key and marker index packed in one long, so one primitive sort groups the cells in the
+        // order of their keys, the sign bit stays clear
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; ++i)
+            sorted[i] = (cellKey(cell(grid.points.x[i]), cell(grid.points.y[i])) << INDEX_BITS) | i;
+        Arrays.sort(sorted);
+        int cells = 0;
+        for (int i = 0; i < n; ++i) {
+            if (i == 0 || (sorted[i] >>> INDEX_BITS) != (sorted[i - 1] >>> INDEX_BITS))
+                ++cells;
+        }
+        grid.cellKeys = new long[cells];
+        grid.cellStart = new int[cells + 1];
+        grid.items = new int[n];
+        int c = -1;
+        for (int i = 0; i < n; ++i) {
+            long key = sorted[i] >>> INDEX_BITS;
+            if (c < 0 || grid.cellKeys[c] != key) {
+                grid.cellKeys[++c] = key;
+                grid.cellStart[c] = i;
+            }
+            grid.items[i] = (int) (sorted[i] & ((1 << INDEX_BITS) - 1));
+        }
+        grid.cellStart[cells] = n;
+        return grid;
+    }
+
+    private static int cell(int position) {
+        return Math.max(0, Math.min((1 << CELL_BITS) - 1, position / CELL_SIZE));
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << CELL_BITS) | cy;
+    }
+}
@@ -0,0 +1,52 @@
+package graphics.map;
+
+/**
+ * Looks up markers all around the world in the {@link MarkerIndex} at every zoom level it has grids for,
+ * the deepest included, where the cell keys take up the most bits. Exits with status 1 if a check fails.
+ */
+public class MarkerIndexTester {
+
+    // east and west of Greenwich, north and south of the equator, and close to the edges of the map
+    private static final double[][] PLACES = new double[][] {
+        { -0.1, 51.5 }, { -70, 40 }, { 10.4, 63.4 }, { 151.2, -33.9 }, { -58.4, -34.6 },
+        { 0.1, 0.1 }, { -179.9, 85 }, { 179.9, -85 }
+    };
+
+    private static int failed;
+
+    public static void main(String[] args) {
+        ProjectionCache projection = new ProjectionCache();
+        Marker[] markers = new Marker[PLACES.length];
+        for (int i = 0; i < PLACES.length; ++i)
+            markers[i] = new Marker(PLACES[i][0], PLACES[i][1], i + 1);
+        projection.setMarkers(markers);
+        MarkerIndex index = new MarkerIndex(projection);
+        for (int zoom = 0; zoom <= MarkerIndex.MAX_ZOOM; ++zoom) {
+            ProjectionCache.Points points = projection.markers(zoom);
+            for (int m = 0; m < markers.length; ++m) {
+                int x = points.x[m], y = points.y[m];
+                String place = "zoom " + zoom + ": the marker at " + PLACES[m][0] + ", " + PLACES[m][1];
+                check(index.findMarker(x, y, zoom) == m, place + " is under its position");
+                int count = index.findMarkers(x - MarkerIndex.CELL_SIZE, y - MarkerIndex.CELL_SIZE, x + MarkerIndex.CELL_SIZE, y + MarkerIndex.CELL_SIZE, zoom);
+                check(count >= 1 && contains(index.hits(), count, m), place + " is inside a rectangle around it");
+            }
+        }
+        System.out.println(failed == 0 ? "all checks passed" : failed + " checks failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static boolean contains(int[] hits, int count, int m) {
+        for (int i = 0; i < count; ++i) {
+            if (hits[i] == m)
+                return true;
+        }
+        return false;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            ++failed;
+        if (!condition || description.startsWith("zoom " + MarkerIndex.MAX_ZOOM + ":"))
+            System.out.println((condition ? "ok     " : "FAILED ") + description);
+    }
+}
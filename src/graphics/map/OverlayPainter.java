@@ -0,0 +1,162 @@
+package graphics.map;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.util.Collection;
+
+import routes.Route;
+
+/**
+ * Draws a set of routes and markers over the map: the great circle paths of the routes, and the
+ * markers, clustered up to {@link MarkerClusterer#MAX_ZOOM}.
+ * <p>
+ * Holds the projected coordinates and the spatial indexes of its data, so only what lies in the painted
+ * area is drawn. The {@link MapPanel} paints its overlay with one, and the {@link MapRenderer} creates
+ * one per image. A painter is not thread safe, it is meant to be used by one thread at a time.
+ */
+final class OverlayPainter {
+
+    static final int CLUSTER_MAX_RADIUS = 30;
+    static final Color CLUSTER_FILL = new Color(255, 0, 0, 96);
+    static final BasicStroke ROUTE_STROKE = new BasicStroke(2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f);
+    static final BasicStroke MARKER_STROKE = new BasicStroke(3.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10.0f, null, 0.0f);
+    // the corners of a marker relative to the marked position, its tip
+    private static final int[] MARKER_X = { -8, 0, 8, 0 };
+    private static final int[] MARKER_Y = { -20, 0, -20, -25 };
+
+    private final ProjectionCache projection = new ProjectionCache();
+    private final MarkerIndex markerIndex = new MarkerIndex(projection);
+    private final MarkerClusterer clusterer = new MarkerClusterer(projection);
+    private final RouteGeometry routeGeometry = new RouteGeometry(projection);
+    private final RouteIndex routeIndex = new RouteIndex(routeGeometry);
+
+    // reused by every paint, so drawing markers allocates nothing once it has grown
+    private final GeneralPath markerPath = new GeneralPath();
+
+    Marker[] getMarkers() {
+        return projection.getMarkers();
+    }
+
+    void setMarkers(Marker[] markers) {
+        projection.setMarkers(markers);
+        markerIndex.invalidate();
+        clusterer.invalidate();
+    }
+
+    void setRoutes(Collection<Route> routes) {
+        projection.setRoutes(routes);
+        routeGeometry.invalidate();
+        routeIndex.invalidate();
+    }
+
+    /**
+     * @return the index of the marker drawn at the given map position, or -1.
+     */
+    int findMarker(int x, int y, int zoom) {
+        return markerIndex.findMarker(x, y, zoom);
+    }
+
+    /**
+     * Paint the routes and markers inside an area of the map.
+     * @param g - the graphics, with its origin at the map position
+     * @param mapPosition - the map coordinates of the origin of g
+     * @param view - the area to paint, in map coordinates
+     * @param stats - receives the time of the route and marker passes, may be null
+     */
+    void paint(Graphics2D g, Point mapPosition, Rectangle view, int zoom, RenderStats stats) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        long t0 = System.nanoTime();
+        int count = routeIndex.query(zoom, view.x, view.y, view.x + view.width, view.y + view.height);
+        if (count > 0)
+            paintRoutes(g, mapPosition, routeGeometry.level(zoom), routeIndex.hits(), count);
+        long t1 = System.nanoTime();
+        if (stats != null)
+            stats.overlayPass(t1 - t0);
+        if (getMarkers().length > 0) {
+            paintMarkers(g, mapPosition, view, zoom);
+            if (stats != null)
+                stats.markerPass(System.nanoTime() - t1);
+        }
+    }
+
+    /**
+     * Draws the great circle paths of the given routes. The paths are in map coordinates, so they are
+     * drawn with the graphics translated by the map position.
+     */
+    private void paintRoutes(Graphics2D g, Point mapPosition, RouteGeometry.Level level, int[] hits, int count) {
+        g.setStroke(ROUTE_STROKE);
+        g.setPaint(Color.RED);
+        g.translate(-mapPosition.x, -mapPosition.y);
+        for (int k = 0; k < count; k++)
+            g.draw(level.paths[hits[k]]);
+        g.translate(mapPosition.x, mapPosition.y);
+    }
+
+    /**
+     * Draws the markers. Up to zoom level {@link MarkerClusterer#MAX_ZOOM} the markers are drawn as the
+     * clusters of that zoom level: a circle with the number of markers for a cluster, and a polygon for a
+     * cluster holding a single marker. Further in every marker is drawn as a polygon. The polygons of all
+     * markers are collected in one shared path, which is filled and outlined once.
+     */
+    private void paintMarkers(Graphics2D g, Point mapPosition, Rectangle view, int zoom) {
+        ProjectionCache.Points points = projection.markers(zoom);
+        // grown by the largest marker or cluster
+        int x0 = view.x - CLUSTER_MAX_RADIUS, x1 = view.x + view.width + CLUSTER_MAX_RADIUS;
+        int y0 = view.y - CLUSTER_MAX_RADIUS, y1 = view.y + view.height + CLUSTER_MAX_RADIUS;
+        g.setStroke(MARKER_STROKE);
+        markerPath.reset();
+        if (zoom > MarkerClusterer.MAX_ZOOM) {
+            int count = markerIndex.findMarkers(x0, y0, x1, y1, zoom);
+            int[] hits = markerIndex.hits();
+            for (int k = 0; k < count; k++)
+                appendMarker(points.x[hits[k]] - mapPosition.x, points.y[hits[k]] - mapPosition.y);
+            fillMarkers(g);
+            return;
+        }
+        MarkerClusterer.Clusters clusters = clusterer.clusters(zoom);
+        int count = clusterer.query(zoom, x0, y0, x1, y1);
+        int[] hits = clusterer.hits();
+        FontMetrics metrics = g.getFontMetrics();
+        for (int k = 0; k < count; k++) {
+            int i = hits[k];
+            if (clusters.count[i] == 1) {
+                appendMarker(points.x[clusters.marker[i]] - mapPosition.x, points.y[clusters.marker[i]] - mapPosition.y);
+                continue;
+            }
+            int radius = Math.min(CLUSTER_MAX_RADIUS, 10 + (int) (4 * Math.log10(clusters.count[i])));
+            int x = clusters.x[i] - mapPosition.x;
+            int y = clusters.y[i] - mapPosition.y;
+            g.setPaint(CLUSTER_FILL);
+            g.fillOval(x - radius, y - radius, 2 * radius, 2 * radius);
+            g.setPaint(Color.RED);
+            g.drawOval(x - radius, y - radius, 2 * radius, 2 * radius);
+            String text = Integer.toString(clusters.count[i]);
+            g.setPaint(Color.BLACK);
+            g.drawString(text, x - metrics.stringWidth(text) / 2, y + (metrics.getAscent() - metrics.getDescent()) / 2);
+        }
+        fillMarkers(g);
+    }
+
+    /**
+     * Adds the polygon of a marker with its tip at x, y to the shared marker path.
+     */
+    private void appendMarker(int x, int y) {
+        markerPath.moveTo(x + MARKER_X[0], y + MARKER_Y[0]);
+        for (int i = 1; i < MARKER_X.length; i++)
+            markerPath.lineTo(x + MARKER_X[i], y + MARKER_Y[i]);
+        markerPath.closePath();
+    }
+
+    private void fillMarkers(Graphics2D g) {
+        g.setPaint(Color.RED);
+        g.fill(markerPath);
+        g.setPaint(Color.BLACK);
+        g.draw(markerPath);
+    }
+}
@@ -0,0 +1,124 @@
+package graphics.map;
+
+/**
+ * Spherical mercator math between longitude/latitude and map pixel coordinates, as used by the tile
+ * servers.
+ * <p>
+ * The size of the map at every zoom level and the factors derived from it are kept in tables, so a
+ * conversion is a table lookup and a multiplication instead of a power of two and a division. The
+ * mercator y of a latitude is computed as ln((1 + sin lat) / (1 - sin lat)) / 2, which needs one sin
+ * and one log where ln(tan lat + 1 / cos lat) needs a tan, a cos and a log; the inverse uses
+ * 2 atan(e^n) - pi / 2 instead of atan(sinh n). The bulk variants project whole arrays of coordinates
+ * in one call. Results agree with the straightforward formulas to a small fraction of a pixel.
+ * Latitudes beyond {@link #MAX_LATITUDE}, where the square map ends, are clamped to the edge of the map.
+ */
+public final class Projection {
+
+    public static final int MAX_ZOOM = 30;
+    // atan(sinh(pi)), the latitude of the top edge of the map, rounded down so it projects onto the map
+    public static final double MAX_LATITUDE = 85.0511287798;
+
+    // indexed by zoom level
+    private static final double[] TILES = new double[MAX_ZOOM + 1];
+    private static final double[] WORLD_SIZE = new double[MAX_ZOOM + 1];
+    private static final double[] PIXELS_PER_DEGREE = new double[MAX_ZOOM + 1];
+    private static final double[] DEGREES_PER_PIXEL = new double[MAX_ZOOM + 1];
+    private static final double[] TILES_PER_DEGREE = new double[MAX_ZOOM + 1];
+    private static final double[] Y_SCALE = new double[MAX_ZOOM + 1];
+
+    static {
+        for (int z = 0; z <= MAX_ZOOM; ++z) {
+            TILES[z] = 1L << z;
+            WORLD_SIZE[z] = (double) MapPanel.TILE_SIZE * (1L << z);
+            PIXELS_PER_DEGREE[z] = WORLD_SIZE[z] / 360;
+            DEGREES_PER_PIXEL[z] = 360 / WORLD_SIZE[z];
+            TILES_PER_DEGREE[z] = TILES[z] / 360;
+            Y_SCALE[z] = WORLD_SIZE[z] / (4 * Math.PI);
+        }
+    }
+
+    private Projection() {
+    }
+
+    /**
+     * @return the width and height of the map in pixels at a zoom level.
+     */
+    public static double worldSize(int z) {
+        return WORLD_SIZE[z];
+    }
+
+    public static int lon2position(double lon, int z) {
+        return (int) Math.floor((lon + 180) * PIXELS_PER_DEGREE[z]);
+    }
+
+    public static int lat2position(double lat, int z) {
+        return (int) Math.floor(mercatorY(lat, z));
+    }
+
+    public static double position2lon(int x, int z) {
+        return x * DEGREES_PER_PIXEL[z] - 180;
+    }
+
+    public static double position2lat(int y, int z) {
+        return inverseMercator(Math.PI - 2 * Math.PI * y / WORLD_SIZE[z]);
+    }
+
+    public static int lon2tile(double lon, int z) {
+        return (int) Math.floor((lon + 180) * TILES_PER_DEGREE[z]);
+    }
+
+    public static int lat2tile(double lat, int z) {
+        return (int) Math.floor(mercatorY(lat, z) / MapPanel.TILE_SIZE);
+    }
+
+    public static double tile2lon(int x, int z) {
+        return x / TILES[z] * 360.0 - 180;
+    }
+
+    public static double tile2lat(int y, int z) {
+        return inverseMercator(getN(y, z));
+    }
+
+    public static double getN(int y, int z) {
+        return Math.PI - 2 * Math.PI * y / TILES[z];
+    }
+
+    /**
+     * Project n points given as separate longitude and latitude arrays.
+     */
+    public static void project(double[] lon, double[] lat, int n, int z, int[] x, int[] y) {
+        double pixelsPerDegree = PIXELS_PER_DEGREE[z];
+        double half = WORLD_SIZE[z] / 2, yScale = Y_SCALE[z];
+        for (int i = 0; i < n; ++i) {
+            x[i] = (int) Math.floor((lon[i] + 180) * pixelsPerDegree);
+            double s = Math.sin(Math.toRadians(clampLatitude(lat[i])));
+            y[i] = (int) Math.floor(half - Math.log((1 + s) / (1 - s)) * yScale);
+        }
+    }
+
+    /**
+     * Project n points given as longitude, latitude pairs in one array.
+     */
+    public static void projectInterleaved(double[] lonLat, int n, int z, int[] x, int[] y) {
+        double pixelsPerDegree = PIXELS_PER_DEGREE[z];
+        double half = WORLD_SIZE[z] / 2, yScale = Y_SCALE[z];
+        for (int i = 0; i < n; ++i) {
+            x[i] = (int) Math.floor((lonLat[2 * i] + 180) * pixelsPerDegree);
+            double s = Math.sin(Math.toRadians(clampLatitude(lonLat[2 * i + 1])));
+            y[i] = (int) Math.floor(half - Math.log((1 + s) / (1 - s)) * yScale);
+        }
+    }
+
+    private static double clampLatitude(double lat) {
+        return Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+    }
+
+    private static double mercatorY(double lat, int z) {
+        double s = Math.sin(Math.toRadians(clampLatitude(lat)));
+        return WORLD_SIZE[z] / 2 - Math.log((1 + s) / (1 - s)) * Y_SCALE[z];
+    }
+
+    private static double inverseMercator(double n) {
+        return Math.toDegrees(2 * Math.atan(Math.exp(n)) - Math.PI / 2);
+    }
+}
@@ -0,0 +1,80 @@
+package graphics.map;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import routes.Route;
+
+/**
+ * Holds the markers and the routes of the panel, and the map pixel coordinates of the markers per zoom
+ * level.
+ * <p>
+ * Projecting a coordinate costs a log, a tan and a cos, while the coordinates of markers only change
+ * when the panel is handed new data. The coordinates of a zoom level are computed the first time that
+ * level is asked for and kept in primitive arrays, in the order of {@link #getMarkers()}; painting then
+ * only has to subtract the map position. Changing the markers drops their cached coordinates. The
+ * paths of the routes are cached the same way by the {@link RouteGeometry}.
+ */
+final class ProjectionCache {
+
+    static final int MAX_ZOOM = 30;
+
+    /**
+     * Projected coordinates, x[i] and y[i] belonging to item i.
+     */
+    static final class Points {
+        final int[] x, y;
+
+        private Points(int n) {
+            x = new int[n];
+            y = new int[n];
+        }
+    }
+
+    private Marker[] markers = new Marker[0]; //OLAV: listen med info
+    private Collection<Route> routeSource = Collections.emptyList();
+    // copied from the source when first asked for, null after a change
+    private Route[] routes = new Route[0];
+    private final Points[] markerPoints = new Points[MAX_ZOOM + 1];
+
+    Marker[] getMarkers() {
+        return markers;
+    }
+
+    void setMarkers(Marker[] markers) {
+        this.markers = markers;
+        Arrays.fill(markerPoints, null);
+    }
+
+    Route[] getRoutes() {
+        if (routes == null)
+            routes = routeSource.toArray(new Route[routeSource.size()]);
+        return routes;
+    }
+
+    /**
+     * Take a new set of routes. The collection is only copied when the routes are next asked for, so
+     * adding routes one at a time, with a call for every route, copies them once. It may change until
+     * then, as long as every change is followed by another call.
+     */
+    void setRoutes(Collection<Route> routes) {
+        this.routeSource = routes;
+        this.routes = null;
+    }
+
+    Points markers(int zoom) {
+        Points points = markerPoints[zoom];
+        if (points == null) {
+            points = new Points(markers.length);
+            double[] lon = new double[markers.length], lat = new double[markers.length];
+            for (int i = 0; i < markers.length; ++i) {
+                lon[i] = markers[i].getLongitude();
+                lat[i] = markers[i].getLatitude();
+            }
+            Projection.project(lon, lat, markers.length, zoom, points.x, points.y);
+            markerPoints[zoom] = points;
+        }
+        return points;
+    }
+}
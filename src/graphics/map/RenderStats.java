@@ -0,0 +1,244 @@
+package graphics.map;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+/**
+ * Render timings of a map panel.
+ * <p>
+ * The panel reports the duration of every frame and of its tile, overlay (routes) and marker passes
+ * in nanoseconds. The last {@link #WINDOW} durations of each kind are kept in a ring, and percentiles
+ * are computed from a sorted copy of the ring when they are read, so recording a sample is only an
+ * array store. Next to the timings the stats count the tiles painted in the last frame and the frames
+ * that zoom animations dropped, and report the hit ratio of the tile cache and the number of tiles
+ * being fetched.
+ * <p>
+ * The stats can be read through {@link MapPanel#getStats()}, over JMX once {@link #register()} was
+ * called, and on the map through {@link MapPanel#setShowStats(boolean)}. JMX calls arrive on threads of
+ * their own, so the frame counters are atomic, and the counters of the tile cache, which belong to the
+ * event dispatch thread, are read and reset on it.
+ */
+public final class RenderStats implements RenderStatsMBean {
+
+    private static final Logger log = Logger.getLogger(RenderStats.class.getName());
+
+    public static final int WINDOW = 512;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The last {@link RenderStats#WINDOW} samples of one duration.
+     */
+    static final class Window {
+        private final long[] samples = new long[WINDOW];
+        private final long[] sorted = new long[WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            count = Math.min(WINDOW, count + 1);
+        }
+
+        /**
+         * @param p - the percentile, between 0 and 100
+         * @return the percentile in milliseconds, or 0 if there are no samples.
+         */
+        synchronized double percentile(double p) {
+            if (count == 0)
+                return 0;
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            int rank = (int) Math.ceil(p / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, rank))] / 1e6;
+        }
+
+        synchronized void clear() {
+            count = 0;
+            next = 0;
+        }
+    }
+
+    private final MapPanel mapPanel;
+    private final Window frames = new Window();
+    private final Window tilePass = new Window();
+    private final Window overlayPass = new Window();
+    private final Window markerPass = new Window();
+    private final AtomicLong frameCount = new AtomicLong();
+    // counted by the ticker thread of the FrameScheduler
+    private final AtomicLong droppedFrames = new AtomicLong();
+    volatile int tileCount;
+    private ObjectName name;
+
+    RenderStats(MapPanel mapPanel) {
+        this.mapPanel = mapPanel;
+    }
+
+    void frame(long nanos) {
+        frames.add(nanos);
+        frameCount.incrementAndGet();
+    }
+
+    void tilePass(long nanos) {
+        tilePass.add(nanos);
+    }
+
+    void overlayPass(long nanos) {
+        overlayPass.add(nanos);
+    }
+
+    void markerPass(long nanos) {
+        markerPass.add(nanos);
+    }
+
+    void framesDropped(int count) {
+        droppedFrames.addAndGet(count);
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return the number of tiles painted in the last frame.
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    public double getFrameP50() {
+        return frames.percentile(50);
+    }
+
+    public double getFrameP95() {
+        return frames.percentile(95);
+    }
+
+    public double getFrameP99() {
+        return frames.percentile(99);
+    }
+
+    public double getTilePassP50() {
+        return tilePass.percentile(50);
+    }
+
+    public double getTilePassP95() {
+        return tilePass.percentile(95);
+    }
+
+    public double getTilePassP99() {
+        return tilePass.percentile(99);
+    }
+
+    public double getOverlayPassP50() {
+        return overlayPass.percentile(50);
+    }
+
+    public double getOverlayPassP95() {
+        return overlayPass.percentile(95);
+    }
+
+    public double getOverlayPassP99() {
+        return overlayPass.percentile(99);
+    }
+
+    public double getMarkerPassP50() {
+        return markerPass.percentile(50);
+    }
+
+    public double getMarkerPassP95() {
+        return markerPass.percentile(95);
+    }
+
+    public double getMarkerPassP99() {
+        return markerPass.percentile(99);
+    }
+
+    public double getCacheHitRatio() {
+        final double[] ratio = new double[1];
+        onEventDispatchThread(new Runnable() {
+            public void run() {
+                ratio[0] = mapPanel.getCache().getHitRatio();
+            }
+        });
+        return ratio[0];
+    }
+
+    public int getPendingTiles() {
+        return mapPanel.getTileLoader().getPendingCount();
+    }
+
+    public void reset() {
+        frames.clear();
+        tilePass.clear();
+        overlayPass.clear();
+        markerPass.clear();
+        frameCount.set(0);
+        droppedFrames.set(0);
+        onEventDispatchThread(new Runnable() {
+            public void run() {
+                mapPanel.getCache().resetCounters();
+            }
+        });
+    }
+
+    /**
+     * Run a task on the event dispatch thread and wait for it.
+     */
+    private static void onEventDispatchThread(Runnable task) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            task.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Register the stats with the platform MBean server, as graphics.map:type=RenderStats,id=n.
+     * Does nothing if already registered.
+     */
+    public synchronized void register() {
+        if (name != null)
+            return;
+        try {
+            ObjectName name = new ObjectName("graphics.map:type=RenderStats,id=" + nextId.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.name = name;
+        } catch (JMException e) {
+            log.log(Level.WARNING, "could not register render stats", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (name == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            log.log(Level.FINE, "could not unregister render stats", e);
+        }
+        name = null;
+    }
+}
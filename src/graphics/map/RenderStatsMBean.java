@@ -0,0 +1,44 @@
+package graphics.map;
+
+/**
+ * Management interface of the {@link RenderStats}. Times are in milliseconds, percentiles are over
+ * the last {@link RenderStats#WINDOW} frames.
+ */
+public interface RenderStatsMBean {
+
+    long getFrameCount();
+
+    long getDroppedFrames();
+
+    int getTileCount();
+
+    double getFrameP50();
+
+    double getFrameP95();
+
+    double getFrameP99();
+
+    double getTilePassP50();
+
+    double getTilePassP95();
+
+    double getTilePassP99();
+
+    double getOverlayPassP50();
+
+    double getOverlayPassP95();
+
+    double getOverlayPassP99();
+
+    double getMarkerPassP50();
+
+    double getMarkerPassP95();
+
+    double getMarkerPassP99();
+
+    double getCacheHitRatio();
+
+    int getPendingTiles();
+
+    void reset();
+}
@@ -0,0 +1,183 @@
+package graphics.map;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+import routes.Route;
+
+/**
+ * Great circle paths of the routes, as polylines in map coordinates per zoom level.
+ * <p>
+ * The path between two destinations is sampled by spherical linear interpolation between their unit
+ * vectors, with about one point every {@link #SEGMENT_LENGTH} pixels at the zoom level, so a route is a
+ * handful of points when zoomed out and a smooth curve when zoomed in. Longitudes are unwrapped along
+ * the path, so a route crossing the antimeridian leaves the map on one side; its path then also holds
+ * a copy shifted by the width of the map, which enters from the other side.
+ * <p>
+ * The polylines of a zoom level are computed the first time that level is asked for and kept, with a
+ * {@link Path2D} built from them and their bounding boxes, in the order of
+ * {@link ProjectionCache#getRoutes()}. Painting a route is then a single draw of its path, without
+ * any trigonometry. Changing the routes drops the cached levels.
+ */
+final class RouteGeometry {
+
+    static final int SEGMENT_LENGTH = 8;
+    static final int MAX_SEGMENTS = 512;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * The polylines of one zoom level. x[i] and y[i] are the points of route i, without the copy for
+     * the antimeridian, and the box of route i includes that copy, clipped to the map.
+     */
+    static final class Level {
+        final int[][] x, y;
+        final Path2D[] paths;
+        final int[] minX, minY, maxX, maxY;
+
+        private Level(int n) {
+            x = new int[n][];
+            y = new int[n][];
+            paths = new Path2D[n];
+            minX = new int[n];
+            minY = new int[n];
+            maxX = new int[n];
+            maxY = new int[n];
+        }
+
+        int size() {
+            return paths.length;
+        }
+    }
+
+    private final ProjectionCache projection;
+    private final Level[] levels = new Level[ProjectionCache.MAX_ZOOM + 1];
+
+    RouteGeometry(ProjectionCache projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Drop the polylines, after the routes of the projection cache changed.
+     */
+    void invalidate() {
+        Arrays.fill(levels, null);
+    }
+
+    Level level(int zoom) {
+        Level level = levels[zoom];
+        if (level == null) {
+            level = build(zoom);
+            levels[zoom] = level;
+        }
+        return level;
+    }
+
+    private Level build(int zoom) {
+        Route[] routes = projection.getRoutes();
+        Level level = new Level(routes.length);
+        int width = (int) Projection.worldSize(zoom);
+        for (int i = 0; i < routes.length; ++i) {
+            double lon1 = routes[i].getStartDestination().getLongitude();
+            double lat1 = routes[i].getStartDestination().getLatitude();
+            double lon2 = routes[i].getEndDestination().getLongitude();
+            double lat2 = routes[i].getEndDestination().getLatitude();
+            double[] points = greatCircle(lon1, lat1, lon2, lat2, segments(centralAngle(lon1, lat1, lon2, lat2), zoom));
+            int n = points.length / 2;
+            for (int k = 1; k < points.length; k += 2)
+                points[k] = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, points[k]));
+            int[] x = new int[n], y = new int[n];
+            Projection.projectInterleaved(points, n, zoom, x, y);
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (int k = 0; k < n; ++k) {
+                minX = Math.min(minX, x[k]);
+                minY = Math.min(minY, y[k]);
+                maxX = Math.max(maxX, x[k]);
+                maxY = Math.max(maxY, y[k]);
+            }
+            Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO, minX < 0 || maxX > width ? 2 * n : n);
+            append(path, x, y, 0);
+            if (minX < 0) {
+                append(path, x, y, width);
+                minX = 0;
+                maxX = width;
+            } else if (maxX > width) {
+                append(path, x, y, -width);
+                minX = 0;
+                maxX = width;
+            }
+            level.x[i] = x;
+            level.y[i] = y;
+            level.paths[i] = path;
+            level.minX[i] = minX;
+            level.minY[i] = minY;
+            level.maxX[i] = maxX;
+            level.maxY[i] = maxY;
+        }
+        return level;
+    }
+
+    private static void append(Path2D path, int[] x, int[] y, int shift) {
+        path.moveTo(x[0] + shift, y[0]);
+        for (int k = 1; k < x.length; ++k)
+            path.lineTo(x[k] + shift, y[k]);
+    }
+
+    /**
+     * @return the number of segments for a path of the given central angle, so that a segment is about
+     * {@link #SEGMENT_LENGTH} pixels long at the zoom level.
+     */
+    static int segments(double angle, int zoom) {
+        double length = angle / (2 * Math.PI) * Projection.worldSize(zoom);
+        return (int) Math.max(1, Math.min(MAX_SEGMENTS, Math.ceil(length / SEGMENT_LENGTH)));
+    }
+
+    /**
+     * @return the angle between two points on the sphere in radians, by the haversine formula.
+     */
+    static double centralAngle(double lon1, double lat1, double lon2, double lat2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Sample the great circle between two points.
+     * @return segments + 1 points as longitude, latitude pairs in degrees. Every longitude lies within
+     * 180 degrees of the one before it, so the longitudes may leave the range -180 to 180.
+     */
+    static double[] greatCircle(double lon1, double lat1, double lon2, double lat2, int segments) {
+        double[] points = new double[2 * (segments + 1)];
+        double phi1 = Math.toRadians(lat1), lambda1 = Math.toRadians(lon1);
+        double phi2 = Math.toRadians(lat2), lambda2 = Math.toRadians(lon2);
+        double ax = Math.cos(phi1) * Math.cos(lambda1), ay = Math.cos(phi1) * Math.sin(lambda1), az = Math.sin(phi1);
+        double bx = Math.cos(phi2) * Math.cos(lambda2), by = Math.cos(phi2) * Math.sin(lambda2), bz = Math.sin(phi2);
+        double angle = centralAngle(lon1, lat1, lon2, lat2);
+        double sinAngle = Math.sin(angle);
+        double previous = lon1;
+        for (int k = 0; k <= segments; ++k) {
+            double t = (double) k / segments;
+            double lon, lat;
+            if (k == 0) {
+                lon = lon1;
+                lat = lat1;
+            } else if (sinAngle < 1e-12) {
+                // the same or antipodal points, the great circle is not defined
+                lon = lon1 + t * (lon2 - lon1);
+                lat = lat1 + t * (lat2 - lat1);
+            } else {
+                double a = Math.sin((1 - t) * angle) / sinAngle;
+                double b = Math.sin(t * angle) / sinAngle;
+                double x = a * ax + b * bx, y = a * ay + b * by, z = a * az + b * bz;
+                lat = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+                lon = Math.toDegrees(Math.atan2(y, x));
+            }
+            lon += 360 * Math.rint((previous - lon) / 360);
+            points[2 * k] = lon;
+            points[2 * k + 1] = lat;
+            previous = lon;
+        }
+        return points;
+    }
+}
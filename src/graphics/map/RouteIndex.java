@@ -0,0 +1,163 @@
+package graphics.map;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the bounding boxes of the routes, used to find the routes inside the viewport.
+ * <p>
+ * For every zoom level the boxes around the great circle paths from the {@link RouteGeometry} are
+ * packed into a static R-tree: the boxes are ordered in vertical slices by their centers (sort tile
+ * recursive), {@link #NODE_SIZE} consecutive boxes get a parent box, and so on up to the root. The
+ * nodes of all levels live in flat int arrays, so a query allocates nothing and only descends into
+ * nodes that overlap the viewport. Routes can span the whole map, which is why they get a tree rather
+ * than the fixed grid of the {@link MarkerIndex}.
+ * The tree of a zoom level is built the first time that level is queried, and all trees are dropped
+ * when the routes change.
+ */
+final class RouteIndex {
+
+    static final int NODE_SIZE = 16;
+
+    private final RouteGeometry geometry;
+    private final Tree[] trees = new Tree[ProjectionCache.MAX_ZOOM + 1];
+    private int[] hits = new int[64];
+    private int[] stack = new int[64];
+
+    private static final class Tree {
+        // node boxes, the leaves (one per route) first and the root last
+        private int[] minX, minY, maxX, maxY;
+        // route of each leaf
+        private int[] items;
+        // first node of every level, levelStart[levels] being the node count
+        private int[] levelStart;
+    }
+
+    RouteIndex(RouteGeometry geometry) {
+        this.geometry = geometry;
+    }
+
+    /**
+     * Drop the trees, after the routes of the geometry changed.
+     */
+    void invalidate() {
+        Arrays.fill(trees, null);
+    }
+
+    /**
+     * Find the routes whose bounding box overlaps a rectangle, the edges included.
+     * @return the number of routes found, their indices are the first entries of {@link #hits()}
+     * in increasing order.
+     */
+    int query(int zoom, int x0, int y0, int x1, int y1) {
+        Tree tree = tree(zoom);
+        int count = 0;
+        int levels = tree.levelStart.length - 1;
+        if (levels == 0)
+            return 0;
+        // node index and level packed together on the stack
+        int top = 0;
+        stack[top++] = tree.levelStart[levels - 1] << 5 | (levels - 1);
+        while (top > 0) {
+            int entry = stack[--top];
+            int node = entry >>> 5, level = entry & 31;
+            if (tree.minX[node] > x1 || tree.maxX[node] < x0 || tree.minY[node] > y1 || tree.maxY[node] < y0)
+                continue;
+            if (level == 0) {
+                if (count == hits.length)
+                    hits = Arrays.copyOf(hits, count * 2);
+                hits[count++] = tree.items[node];
+                continue;
+            }
+            int first = tree.levelStart[level - 1] + (node - tree.levelStart[level]) * NODE_SIZE;
+            int end = Math.min(first + NODE_SIZE, tree.levelStart[level]);
+            if (top + NODE_SIZE > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            for (int child = first; child < end; ++child)
+                stack[top++] = child << 5 | (level - 1);
+        }
+        Arrays.sort(hits, 0, count);
+        return count;
+    }
+
+    /**
+     * @return the result buffer of the last {@link #query}, only valid until the next one.
+     */
+    int[] hits() {
+        return hits;
+    }
+
+    private Tree tree(int zoom) {
+        Tree tree = trees[zoom];
+        if (tree == null) {
+            tree = build(zoom);
+            trees[zoom] = tree;
+        }
+        return tree;
+    }
+
+    private Tree build(int zoom) {
+        RouteGeometry.Level boxes = geometry.level(zoom);
+        int n = boxes.size();
+        int nodes = 0;
+        int levels = 0;
+        for (int size = n; size > 0; size = size == 1 ? 0 : (size + NODE_SIZE - 1) / NODE_SIZE) {
+            nodes += size;
+            ++levels;
+        }
+        Tree tree = new Tree();
+        tree.minX = new int[nodes];
+        tree.minY = new int[nodes];
+        tree.maxX = new int[nodes];
+        tree.maxY = new int[nodes];
+        tree.items = new int[n];
+        tree.levelStart = new int[levels + 1];
+        if (n == 0)
+            return tree;
+
+        // sort tile recursive: slices by center x, each slice ordered by center y
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; ++i)
+            sorted[i] = (long) ((boxes.minX[i] >> 1) + (boxes.maxX[i] >> 1)) << 32 | i;
+        Arrays.sort(sorted);
+        int slice = NODE_SIZE * (int) Math.ceil(Math.sqrt((double) n / NODE_SIZE));
+        for (int s = 0; s < n; s += slice) {
+            int end = Math.min(n, s + slice);
+            for (int i = s; i < end; ++i) {
+                int r = (int) sorted[i];
+                sorted[i] = (long) ((boxes.minY[r] >> 1) + (boxes.maxY[r] >> 1)) << 32 | r;
+            }
+            Arrays.sort(sorted, s, end);
+        }
+        for (int i = 0; i < n; ++i) {
+            int r = (int) sorted[i];
+            tree.items[i] = r;
+            tree.minX[i] = boxes.minX[r];
+            tree.minY[i] = boxes.minY[r];
+            tree.maxX[i] = boxes.maxX[r];
+            tree.maxY[i] = boxes.maxY[r];
+        }
+
+        int start = 0, size = n;
+        for (int level = 1; level < levels; ++level) {
+            tree.levelStart[level] = start + size;
+            int parent = start + size;
+            for (int first = start; first < start + size; first += NODE_SIZE, ++parent) {
+                int end = Math.min(first + NODE_SIZE, start + size);
+                tree.minX[parent] = Integer.MAX_VALUE;
+                tree.minY[parent] = Integer.MAX_VALUE;
+                tree.maxX[parent] = Integer.MIN_VALUE;
+                tree.maxY[parent] = Integer.MIN_VALUE;
+                for (int child = first; child < end; ++child) {
+                    tree.minX[parent] = Math.min(tree.minX[parent], tree.minX[child]);
+                    tree.minY[parent] = Math.min(tree.minY[parent], tree.minY[child]);
+                    tree.maxX[parent] = Math.max(tree.maxX[parent], tree.maxX[child]);
+                    tree.maxY[parent] = Math.max(tree.maxY[parent], tree.maxY[child]);
+                }
+            }
+            start += size;
+            size = parent - start;
+        }
+        tree.levelStart[levels] = nodes;
+        return tree;
+    }
+}
@@ -0,0 +1,227 @@
+package graphics.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import graphics.map.MapPanel.Tile;
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Downloads tiles over http for everything that needs one: the TileLoader of every panel, the
+ * {@link MapRenderer} and the {@link TilePackBuilder}.
+ * <p>
+ * A tile that is already being downloaded is not requested a second time: the first caller runs the
+ * request and later callers wait for the same future, so the painters of a zoom animation, several panels
+ * and concurrent renders share one request per tile. At most {@link #MAX_REQUESTS_PER_SERVER} requests per
+ * tile server are in flight at a time, further callers wait for a slot. The limit stays below the number
+ * of idle connections the JDK keeps alive per host (http.maxConnections, 5 by default), and every response
+ * is read to the end and closed, errors included, so the connections to a server are pooled and reused
+ * instead of opened for every tile.
+ * <p>
+ * A tile whose copy in the disk cache has expired is requested conditionally, with the ETag and the
+ * Last-Modified time the server sent with the copy. A server that still has the same tile answers 304 Not
+ * Modified without a body. The outcome of every request is reported to the {@link TileServerMonitor}.
+ */
+final class TileClient {
+
+    static final int MAX_REQUESTS_PER_SERVER = 4;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private static TileClient defaultClient;
+
+    /**
+     * The answer of the server: the tile, or word that the copy sent along is still current.
+     */
+    static final class Response {
+        private static final Response NOT_MODIFIED = new Response(null, null, 0);
+
+        // null if not modified
+        final byte[] data;
+        // the ETag of the tile, null if the server sent none
+        final String etag;
+        // the Last-Modified time of the tile in milliseconds since the epoch, 0 if the server sent none
+        final long lastModified;
+
+        private Response(byte[] data, String etag, long lastModified) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean isNotModified() {
+            return data == null;
+        }
+    }
+
+    private final TileServerMonitor monitor;
+    private final ConcurrentHashMap<Tile, FutureTask<Response>> inFlight = new ConcurrentHashMap<Tile, FutureTask<Response>>();
+    private final ConcurrentHashMap<TileServer, Semaphore> slots = new ConcurrentHashMap<TileServer, Semaphore>();
+
+    TileClient(TileServerMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * @return the client shared by all panels, reporting to the default {@link TileServerMonitor}.
+     */
+    static synchronized TileClient getDefault() {
+        if (defaultClient == null)
+            defaultClient = new TileClient(TileServerMonitor.getDefault());
+        return defaultClient;
+    }
+
+    /**
+     * Download a tile on the calling thread, or wait for the download another thread already started. A
+     * download that fails because the thread running it was interrupted is started again by a caller
+     * that was waiting for it.
+     * @param stored - the expired copy of the tile to revalidate, null to download the tile unconditionally
+     * @throws FileNotFoundException if the server has no such tile
+     */
+    Response get(final TileServer tileServer, int x, int y, int z, final DiskTileCache.Stored stored) throws IOException {
+        Tile tile = new Tile(tileServer.getURL(), x, y, z);
+        final String url = MapPanel.getTileString(tileServer, x, y, z);
+        while (true) {
+            FutureTask<Response> task = new FutureTask<Response>(new Callable<Response>() {
+                public Response call() throws IOException {
+                    return request(tileServer, url, stored);
+                }
+            });
+            FutureTask<Response> running = inFlight.putIfAbsent(tile, task);
+            if (running == null) {
+                running = task;
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(tile, task);
+                }
+            }
+            Response response;
+            try {
+                response = await(running, url);
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (InterruptedIOException e) {
+                // the interrupt was meant for the thread that ran the request, not for this one
+                if (running == task || Thread.currentThread().isInterrupted())
+                    throw e;
+                inFlight.remove(tile, running);
+                continue;
+            }
+            if (response.isNotModified() && stored == null) {
+                // joined the revalidation of a copy this caller does not have
+                return request(tileServer, url, null);
+            }
+            return response;
+        }
+    }
+
+    private static Response await(FutureTask<Response> task, String url) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Runs a request once a slot of the server is free, and reports the outcome to the monitor. A missing
+     * tile is not held against the server.
+     */
+    private Response request(TileServer tileServer, String url, DiskTileCache.Stored stored) throws IOException {
+        Semaphore slot = slot(tileServer);
+        try {
+            slot.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to load " + url);
+        }
+        long t0 = System.nanoTime();
+        try {
+            Response response = exchange(url, stored);
+            monitor.record(tileServer, (System.nanoTime() - t0) / 1000000, true);
+            return response;
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            monitor.record(tileServer, (System.nanoTime() - t0) / 1000000, false);
+            throw e;
+        } finally {
+            slot.release();
+        }
+    }
+
+    private Semaphore slot(TileServer tileServer) {
+        Semaphore slot = slots.get(tileServer);
+        if (slot == null) {
+            Semaphore created = new Semaphore(MAX_REQUESTS_PER_SERVER);
+            slot = slots.putIfAbsent(tileServer, created);
+            if (slot == null)
+                slot = created;
+        }
+        return slot;
+    }
+
+    private static Response exchange(String url, DiskTileCache.Stored stored) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        if (stored != null) {
+            if (stored.lastModified != 0)
+                connection.setIfModifiedSince(stored.lastModified);
+            if (stored.etag != null)
+                connection.setRequestProperty("If-None-Match", stored.etag);
+        }
+        if (!(connection instanceof HttpURLConnection))
+            return new Response(readFully(connection.getInputStream()), null, connection.getLastModified());
+        HttpURLConnection http = (HttpURLConnection) connection;
+        int status = http.getResponseCode();
+        if (status >= 400) {
+            // read the error page too, or the connection is closed instead of kept alive
+            InputStream error = http.getErrorStream();
+            if (error != null)
+                readFully(error);
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE)
+                throw new FileNotFoundException(url);
+            throw new IOException("http status " + status + " for " + url);
+        }
+        byte[] data = readFully(http.getInputStream());
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && stored != null)
+            return Response.NOT_MODIFIED;
+        return new Response(data, http.getHeaderField("ETag"), http.getLastModified());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package graphics.map;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Turns the encoded bytes of a tile into an image that draws fast.
+ * <p>
+ * ImageIO decodes a png into whatever raster matches the file, often an indexed or 3 byte BGR image.
+ * Java2D converts such an image pixel by pixel on every drawImage and can not keep it in video memory.
+ * The decoder copies every decoded tile into an image compatible with the screen, or an int RGB image
+ * when running headless, so drawing a tile is a plain blit. ImageIO is told not to spool the streams
+ * it reads to temporary files, tiles are small enough to be read from memory.
+ * <p>
+ * Decoding takes far more CPU than fetching a tile, so the {@link TileLoader} hands the bytes it fetched
+ * to a fork-join pool of its own, one thread per processor and shared by all panels, and its threads
+ * only wait on I/O.
+ */
+final class TileDecoder {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("TileDecoder-" + count.getAndIncrement());
+                    return thread;
+                }
+            }, null, true);
+
+    /**
+     * The configuration of the default screen, null when running headless. Looked up on first use.
+     */
+    private static final class Screen {
+        static final GraphicsConfiguration configuration = GraphicsEnvironment.isHeadless() ? null
+                : GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    static {
+        ImageIO.setUseCache(false);
+    }
+
+    private TileDecoder() {
+    }
+
+    /**
+     * Run a decoding task on the pool.
+     */
+    static void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Decode a tile on the calling thread.
+     * @return the tile, or null if the data is not an image.
+     */
+    static BufferedImage decode(ByteBuffer data) throws IOException {
+        BufferedImage image = ImageIO.read(new TilePack.BufferInputStream(data));
+        return image == null ? null : toCompatible(image);
+    }
+
+    /**
+     * @return the image, or a copy of it in the format of the screen if it has a different one.
+     */
+    static BufferedImage toCompatible(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        int transparency = image.getColorModel().getTransparency();
+        GraphicsConfiguration configuration = Screen.configuration;
+        BufferedImage compatible;
+        if (configuration != null) {
+            if (image.getColorModel().equals(configuration.getColorModel(transparency)))
+                return image;
+            compatible = configuration.createCompatibleImage(width, height, transparency);
+        } else {
+            int type = transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+            if (image.getType() == type)
+                return image;
+            compatible = new BufferedImage(width, height, type);
+        }
+        Graphics2D g = compatible.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return compatible;
+    }
+}
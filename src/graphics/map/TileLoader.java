@@ -0,0 +1,390 @@
+package graphics.map;
+
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import graphics.map.MapPanel.Tile;
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Fetches map tiles in the background so the paint path never waits on the network.
+ * <p>
+ * Requests are queued last-in first-out, so the tiles of the current viewport are loaded before the
+ * tiles the user already panned past. Prefetch requests from the {@link TilePrefetcher} wait in a queue of
+ * their own and are only served when no tile of the viewport is waiting; a prefetch request is promoted
+ * when the painter asks for the same tile. The {@link DiskTileCache} of the panel is consulted before going
+ * to the tile server through the {@link TileClient}, and every downloaded tile is written back to it. Tile
+ * servers backed by a {@link TilePack} are read straight from the pack. The workers only fetch the encoded
+ * tiles; decoding them into images in the format of the screen happens on the pool of the
+ * {@link TileDecoder}. A request for a tile that is already queued or being fetched is ignored, and so is
+ * a request for a tile that failed to load less than {@link #FAILURE_TTL_MS} ago. Finished
+ * tiles are handed back to the event dispatch thread in batches: they are put in the {@link MapPanel}'s
+ * tile cache and the panel is repainted with the next frame.
+ */
+final class TileLoader {
+
+    private static final Logger log = Logger.getLogger(TileLoader.class.getName());
+
+    private static final int WORKER_COUNT = 4;
+    private static final int MAX_QUEUED = 256;
+    private static final int MAX_PREFETCH_QUEUED = 128;
+    // how long a tile that failed to load is not requested again
+    static final long FAILURE_TTL_MS = 30000;
+    private static final int MAX_FAILURES = 1024;
+
+    private final MapPanel mapPanel;
+
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private final ArrayDeque<Request> prefetchQueue = new ArrayDeque<Request>();
+    private final HashMap<Tile, Request> pending = new HashMap<Tile, Request>();
+    // the time until which a failed tile is not requested again
+    private final HashMap<Tile, Long> failures = new HashMap<Tile, Long>();
+    private Thread[] workers;
+
+    private final ConcurrentLinkedQueue<Request> finished = new ConcurrentLinkedQueue<Request>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * The encoded bytes of a tile and where they came from.
+     */
+    private static final class Fetched {
+        private final ByteBuffer data;
+        private final boolean fromDiskCache;
+        private final boolean downloaded;
+        // the ETag and Last-Modified time of a downloaded tile, stored with it in the disk cache
+        private final String etag;
+        private final long lastModified;
+
+        private Fetched(ByteBuffer data, boolean fromDiskCache, boolean downloaded, String etag, long lastModified) {
+            this.data = data;
+            this.fromDiskCache = fromDiskCache;
+            this.downloaded = downloaded;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class Request {
+        private final TileServer tileServer;
+        private final Tile tile;
+        private boolean prefetch;
+        private boolean fromDiskCache, skipDiskCache;
+        // set when the worker was interrupted, which says nothing about the tile
+        private boolean interrupted;
+        private BufferedImage image;
+
+        private Request(TileServer tileServer, Tile tile) {
+            this.tileServer = tileServer;
+            this.tile = tile;
+        }
+    }
+
+    TileLoader(MapPanel mapPanel) {
+        this.mapPanel = mapPanel;
+    }
+
+    /**
+     * Queue a tile for loading, unless it is already queued or in flight.
+     * Must be called on the event dispatch thread.
+     */
+    void request(TileServer tileServer, int x, int y, int z) {
+        Tile tile = new Tile(tileServer.getURL(), x, y, z);
+        synchronized (this) {
+            if (hasFailed(tile))
+                return;
+            Request request = pending.get(tile);
+            if (request != null) {
+                if (!request.prefetch)
+                    return;
+                // promote the prefetch request, or just mark it so its arrival triggers a repaint
+                request.prefetch = false;
+                if (!prefetchQueue.remove(request))
+                    return;
+            } else {
+                request = new Request(tileServer, tile);
+                pending.put(tile, request);
+            }
+            enqueue(queue, request, MAX_QUEUED);
+        }
+    }
+
+    /**
+     * Queue a tile the user is likely to see soon. It is only fetched when no requested tile is waiting.
+     * Must be called on the event dispatch thread.
+     */
+    void prefetch(TileServer tileServer, int x, int y, int z) {
+        Tile tile = new Tile(tileServer.getURL(), x, y, z);
+        synchronized (this) {
+            if (pending.containsKey(tile) || hasFailed(tile))
+                return;
+            Request request = new Request(tileServer, tile);
+            request.prefetch = true;
+            pending.put(tile, request);
+            enqueue(prefetchQueue, request, MAX_PREFETCH_QUEUED);
+        }
+    }
+
+    private boolean hasFailed(Tile tile) {
+        Long until = failures.get(tile);
+        if (until == null)
+            return false;
+        if (until > System.currentTimeMillis())
+            return true;
+        failures.remove(tile);
+        return false;
+    }
+
+    private synchronized void addFailure(Tile tile) {
+        long now = System.currentTimeMillis();
+        if (failures.size() >= MAX_FAILURES) {
+            Iterator<Long> it = failures.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() <= now)
+                    it.remove();
+            }
+            if (failures.size() >= MAX_FAILURES)
+                failures.clear();
+        }
+        failures.put(tile, now + FAILURE_TTL_MS);
+    }
+
+    private void enqueue(ArrayDeque<Request> queue, Request request, int max) {
+        queue.addFirst(request);
+        if (queue.size() > max) {
+            // the oldest request is most likely scrolled out of view by now
+            Request dropped = queue.removeLast();
+            pending.remove(dropped.tile);
+        }
+        if (workers == null)
+            startWorkers();
+        notify();
+    }
+
+    /**
+     * @return the number of tiles queued or being fetched.
+     */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Forget every queued request. Tiles already being fetched will still complete.
+     */
+    synchronized void cancelQueued() {
+        for (Request request : queue)
+            pending.remove(request.tile);
+        queue.clear();
+        cancelPrefetch();
+    }
+
+    /**
+     * Forget the queued prefetch requests, for example when the prediction they were based on changed.
+     */
+    synchronized void cancelPrefetch() {
+        for (Request request : prefetchQueue)
+            pending.remove(request.tile);
+        prefetchQueue.clear();
+    }
+
+    /**
+     * Stop the worker threads. A later request starts them again.
+     */
+    synchronized void shutdown() {
+        cancelQueued();
+        if (workers == null)
+            return;
+        for (Thread worker : workers)
+            worker.interrupt();
+        workers = null;
+    }
+
+    private void startWorkers() {
+        workers = new Thread[WORKER_COUNT];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "TileLoader-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Request request;
+            synchronized (this) {
+                while (queue.isEmpty() && prefetchQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = queue.isEmpty() ? prefetchQueue.removeFirst() : queue.removeFirst();
+            }
+            try {
+                fetch(request);
+            } catch (Exception e) {
+                log.log(Level.FINE, "failed to load tile " + request.tile, e);
+                // a timeout is an InterruptedIOException too, but a failure of the server
+                request.interrupted = e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)
+                        || Thread.currentThread().isInterrupted();
+                finish(request);
+            }
+        }
+    }
+
+    /**
+     * Fetches the encoded tile and hands it to the decoder.
+     */
+    private void fetch(Request request) throws IOException {
+        Tile tile = request.tile;
+        DiskTileCache diskCache = mapPanel.getDiskCache();
+        Fetched fetched = fetch(request.tileServer, tile.x, tile.y, tile.z, diskCache, request.skipDiskCache);
+        if (fetched == null) {
+            finish(request);
+            return;
+        }
+        request.fromDiskCache = fetched.fromDiskCache;
+        decode(request, fetched, diskCache);
+    }
+
+    /**
+     * Decodes a fetched tile on the pool of the {@link TileDecoder}. A downloaded tile is written to the disk
+     * cache once it decoded, a tile from the disk cache that does not decode is downloaded again.
+     * @param diskCache - the disk cache to store a downloaded tile in, may be null
+     */
+    private void decode(final Request request, final Fetched fetched, final DiskTileCache diskCache) {
+        TileDecoder.execute(new Runnable() {
+            public void run() {
+                try {
+                    request.image = TileDecoder.decode(fetched.data.duplicate());
+                } catch (Exception e) {
+                    log.log(Level.FINE, "failed to decode tile " + request.tile, e);
+                }
+                if (request.image == null && request.fromDiskCache) {
+                    request.fromDiskCache = false;
+                    request.skipDiskCache = true;
+                    retry(request);
+                    return;
+                }
+                Tile tile = request.tile;
+                if (request.image != null && fetched.downloaded && diskCache != null)
+                    diskCache.put(request.tileServer, tile.x, tile.y, tile.z, fetched.data.array(), fetched.etag, fetched.lastModified);
+                finish(request);
+            }
+        });
+    }
+
+    private synchronized void retry(Request request) {
+        if (workers == null) {
+            // shut down in the meantime
+            pending.remove(request.tile);
+            return;
+        }
+        enqueue(request.prefetch ? prefetchQueue : queue, request, request.prefetch ? MAX_PREFETCH_QUEUED : MAX_QUEUED);
+    }
+
+    /**
+     * Load and decode a tile on the calling thread, writing a downloaded tile back to the disk cache.
+     * @param diskCache - may be null
+     * @return the tile, or null if there is no such tile or it could not be decoded.
+     */
+    static BufferedImage load(TileServer tileServer, int x, int y, int z, DiskTileCache diskCache) throws IOException {
+        Fetched fetched = fetch(tileServer, x, y, z, diskCache, false);
+        if (fetched == null)
+            return null;
+        BufferedImage image = TileDecoder.decode(fetched.data.duplicate());
+        if (image == null && fetched.fromDiskCache) {
+            fetched = fetch(tileServer, x, y, z, diskCache, true);
+            image = TileDecoder.decode(fetched.data.duplicate());
+        }
+        if (image != null && fetched.downloaded && diskCache != null)
+            diskCache.put(tileServer, x, y, z, fetched.data.array(), fetched.etag, fetched.lastModified);
+        return image;
+    }
+
+    /**
+     * Reads the encoded tile from the pack of the tile server, from the disk cache while it is fresh, or
+     * else from the tile server through the {@link TileClient}. An expired copy in the disk cache is
+     * revalidated with the server, and used as it is when the server can not be reached.
+     * @param skipDiskCache - true to ignore the copy in the disk cache
+     * @return null if the pack of the tile server has no such tile.
+     */
+    private static Fetched fetch(TileServer tileServer, int x, int y, int z, DiskTileCache diskCache, boolean skipDiskCache) throws IOException {
+        TilePack pack = tileServer.getPack();
+        if (pack != null) {
+            ByteBuffer data = pack.get(x, y, z);
+            return data == null ? null : new Fetched(data, false, false, null, 0);
+        }
+        DiskTileCache.Stored stored = diskCache == null || skipDiskCache ? null : diskCache.getStored(tileServer, x, y, z);
+        if (stored != null && !stored.isExpired(tileServer))
+            return new Fetched(ByteBuffer.wrap(stored.data), true, false, null, 0);
+        TileClient.Response response;
+        try {
+            response = TileClient.getDefault().get(tileServer, x, y, z, stored);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (stored == null)
+                throw e;
+            log.log(Level.FINE, "failed to revalidate tile " + z + "/" + x + "/" + y + ", using the expired copy", e);
+            return new Fetched(ByteBuffer.wrap(stored.data), true, false, null, 0);
+        }
+        if (response.isNotModified()) {
+            diskCache.touch(tileServer, x, y, z);
+            return new Fetched(ByteBuffer.wrap(stored.data), true, false, null, 0);
+        }
+        return new Fetched(ByteBuffer.wrap(response.data), false, true, response.etag, response.lastModified);
+    }
+
+    private void finish(Request request) {
+        finished.add(request);
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves every finished tile into the cache and repaints the panel once. Runs on the event dispatch thread.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        boolean loaded = false;
+        Request request;
+        while ((request = finished.poll()) != null) {
+            synchronized (this) {
+                pending.remove(request.tile);
+            }
+            if (request.image != null) {
+                Tile tile = request.tile;
+                mapPanel.getCache().put(request.tileServer, tile.x, tile.y, tile.z, request.image);
+                mapPanel.tileLoaded(request.tileServer, tile.x, tile.y, tile.z);
+                loaded |= !request.prefetch;
+            } else if (!request.interrupted) {
+                addFailure(request.tile);
+            }
+        }
+        if (loaded)
+            mapPanel.getFrameScheduler().requestFrame();
+    }
+}
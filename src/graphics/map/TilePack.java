@@ -0,0 +1,149 @@
+package graphics.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only archive holding the tiles of an offline map region in a single file.
+ * <p>
+ * Layout, all numbers big-endian:
+ * <pre>
+ *   int   magic "TPAK"
+ *   int   version
+ *   int   minZoom, maxZoom
+ *   int   tile count
+ *   index tile count * (long key, long offset, int length), sorted by key
+ *   blobs the encoded tile images
+ * </pre>
+ * The key packs z, x and y so that sorting by key sorts by (z, x, y), see {@link #key(int, int, int)}.
+ * The whole file is memory mapped, so a lookup is a binary search over the mapped index and the returned
+ * tile is a view of the mapped blob: no copy and, once the pages are resident, no system call.
+ * Packs are created with {@link TilePackBuilder}.
+ */
+public final class TilePack {
+
+    static final int MAGIC = 0x5450414b; // "TPAK"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 5 * 4;
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int minZoom, maxZoom;
+    private final int count;
+
+    public TilePack(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("tile pack larger than 2 GB: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("not a tile pack: " + file);
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("unsupported tile pack version " + buffer.getInt(4) + ": " + file);
+        minZoom = buffer.getInt(8);
+        maxZoom = buffer.getInt(12);
+        count = buffer.getInt(16);
+        if (HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > buffer.limit())
+            throw new IOException("truncated tile pack: " + file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public int getTileCount() {
+        return count;
+    }
+
+    /**
+     * @return a read-only view of the encoded tile, or null if the pack does not contain it.
+     */
+    public ByteBuffer get(int x, int y, int z) {
+        int entry = find(key(x, y, z));
+        if (entry < 0)
+            return null;
+        int offset = (int) buffer.getLong(entry + 8);
+        int length = buffer.getInt(entry + 16);
+        ByteBuffer tile = buffer.duplicate();
+        tile.position(offset);
+        tile.limit(offset + length);
+        return tile.slice();
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return find(key(x, y, z)) >= 0;
+    }
+
+    /**
+     * Binary search over the mapped index.
+     * @return the position of the index entry in the buffer, or -1.
+     */
+    private int find(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+            long midKey = buffer.getLong(entry);
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else
+                return entry;
+        }
+        return -1;
+    }
+
+    static long key(int x, int y, int z) {
+        return ((long) z << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * Reads a tile straight out of its buffer, so it can be handed to ImageIO without copying it first.
+     */
+    static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
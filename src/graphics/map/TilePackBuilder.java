@@ -0,0 +1,153 @@
+package graphics.map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Downloads every tile of a region from a tile server and writes them to a {@link TilePack}.
+ * <p>
+ * Usage: <code>TilePackBuilder &lt;tileserver url&gt; &lt;west&gt; &lt;south&gt; &lt;east&gt; &lt;north&gt;
+ * &lt;min zoom&gt; &lt;max zoom&gt; &lt;pack file&gt;</code>
+ */
+public final class TilePackBuilder {
+
+    private static final Logger log = Logger.getLogger(TilePackBuilder.class.getName());
+
+    private TilePackBuilder() {
+    }
+
+    /**
+     * Build a pack holding the tiles that cover the bounding box at every zoom level from minZoom to maxZoom.
+     * Tiles that can not be downloaded are left out of the pack.
+     * @return the number of tiles written.
+     */
+    public static int build(TileServer tileServer, double west, double south, double east, double north,
+            int minZoom, int maxZoom, File out) throws IOException {
+        maxZoom = Math.min(maxZoom, tileServer.getMaxZoom());
+        // blobs are spooled to a temporary file, since the index has to be written in front of them
+        File blobs = File.createTempFile("tilepack", ".blobs", out.getAbsoluteFile().getParentFile());
+        long[] keys = new long[64];
+        long[] offsets = new long[64];
+        int[] lengths = new int[64];
+        int count = 0;
+        long offset = 0;
+        try {
+            DataOutputStream blobOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(blobs)));
+            try {
+                for (int z = minZoom; z <= maxZoom; ++z) {
+                    int last = (1 << z) - 1;
+                    int x0 = clamp(MapPanel.lon2position(west, z) / MapPanel.TILE_SIZE, last);
+                    int x1 = clamp((MapPanel.lon2position(east, z) - 1) / MapPanel.TILE_SIZE, last);
+                    int y0 = clamp(MapPanel.lat2position(north, z) / MapPanel.TILE_SIZE, last);
+                    int y1 = clamp((MapPanel.lat2position(south, z) - 1) / MapPanel.TILE_SIZE, last);
+                    for (int x = x0; x <= x1; ++x) {
+                        for (int y = y0; y <= y1; ++y) {
+                            String url = MapPanel.getTileString(tileServer, x, y, z);
+                            byte[] data;
+                            try {
+                                data = TileClient.getDefault().get(tileServer, x, y, z, null).data;
+                            } catch (IOException e) {
+                                log.log(Level.WARNING, "failed to load url \"" + url + "\"", e);
+                                continue;
+                            }
+                            if (count == keys.length) {
+                                keys = Arrays.copyOf(keys, count * 2);
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                                lengths = Arrays.copyOf(lengths, count * 2);
+                            }
+                            keys[count] = TilePack.key(x, y, z);
+                            offsets[count] = offset;
+                            lengths[count] = data.length;
+                            ++count;
+                            blobOut.write(data);
+                            offset += data.length;
+                        }
+                    }
+                }
+            } finally {
+                blobOut.close();
+            }
+            sort(keys, offsets, lengths, count);
+            long blobStart = TilePack.HEADER_SIZE + (long) count * TilePack.INDEX_ENTRY_SIZE;
+            DataOutputStream packOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+            try {
+                packOut.writeInt(TilePack.MAGIC);
+                packOut.writeInt(TilePack.VERSION);
+                packOut.writeInt(minZoom);
+                packOut.writeInt(maxZoom);
+                packOut.writeInt(count);
+                for (int i = 0; i < count; ++i) {
+                    packOut.writeLong(keys[i]);
+                    packOut.writeLong(blobStart + offsets[i]);
+                    packOut.writeInt(lengths[i]);
+                }
+                InputStream in = new FileInputStream(blobs);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                        packOut.write(buffer, 0, n);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                packOut.close();
+            }
+        } finally {
+            blobs.delete();
+        }
+        return count;
+    }
+
+    private static int clamp(int tile, int last) {
+        return Math.max(0, Math.min(last, tile));
+    }
+
+    /**
+     * Insertion sort on the keys, tiles are nearly always produced in key order already.
+     */
+    private static void sort(long[] keys, long[] offsets, int[] lengths, int count) {
+        for (int i = 1; i < count; ++i) {
+            long key = keys[i];
+            long offset = offsets[i];
+            int length = lengths[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                offsets[j + 1] = offsets[j];
+                lengths[j + 1] = lengths[j];
+                --j;
+            }
+            keys[j + 1] = key;
+            offsets[j + 1] = offset;
+            lengths[j + 1] = length;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 8) {
+            System.err.println("usage: TilePackBuilder <tileserver name or url> <west> <south> <east> <north> <min zoom> <max zoom> <pack file>");
+            System.exit(1);
+        }
+        TileServer tileServer = TileServerRegistry.getDefault().find(args[0]);
+        if (tileServer == null) {
+            System.err.println("unknown tileserver " + args[0] + ", choose one of " + MapPanel.getTileServers());
+            System.exit(1);
+        }
+        File out = new File(args[7]);
+        int count = build(tileServer, Double.parseDouble(args[1]), Double.parseDouble(args[2]),
+                Double.parseDouble(args[3]), Double.parseDouble(args[4]),
+                Integer.parseInt(args[5]), Integer.parseInt(args[6]), out);
+        System.out.println("wrote " + count + " tiles to " + out);
+    }
+}
@@ -0,0 +1,154 @@
+package graphics.map;
+
+import java.awt.Point;
+
+import graphics.map.MapPanel.TileCache;
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Queues tiles at low priority before they scroll into view.
+ * <p>
+ * While the map is dragged the prefetcher keeps a smoothed pan velocity and requests the tiles the
+ * viewport will cover {@link #LOOKAHEAD_MS} from now, plus a ring of one tile around the viewport; when
+ * the map is flung it requests the tiles along the whole glide the same way.
+ * When a zoom animation starts it requests the tiles around the pivot one zoom level further, where
+ * the user is most likely to go next. Tiles already in the cache are skipped, and the TileLoader only
+ * fetches prefetch requests while no visible tile is waiting.
+ */
+final class TilePrefetcher {
+
+    private static final long LOOKAHEAD_MS = 600;
+    private static final double SMOOTHING = 0.3;
+    private static final int RING = 1;
+    private static final int PIVOT_RADIUS = 1;
+
+    private final MapPanel mapPanel;
+
+    private double vx, vy;
+    private int lastX, lastY;
+    private long lastTime = -1;
+
+    // the tile range requested last, so repeated drag events inside one tile are cheap
+    private int lastZoom = -1, lastX0, lastY0, lastX1, lastY1;
+
+    TilePrefetcher(MapPanel mapPanel) {
+        this.mapPanel = mapPanel;
+    }
+
+    /**
+     * @return the smoothed pan velocity in map pixels per millisecond.
+     */
+    double getVelocityX() {
+        return vx;
+    }
+
+    double getVelocityY() {
+        return vy;
+    }
+
+    /**
+     * Called for every frame of a drag with the new map position.
+     */
+    void onPan(int mapX, int mapY, long when) {
+        track(mapX, mapY, when);
+        prefetchAhead(mapX, mapY, vx * LOOKAHEAD_MS, vy * LOOKAHEAD_MS);
+    }
+
+    /**
+     * Called for every drag event, to follow the pan velocity without prefetching.
+     */
+    void track(int mapX, int mapY, long when) {
+        if (lastTime >= 0 && when > lastTime) {
+            long dt = when - lastTime;
+            vx += SMOOTHING * ((double) (mapX - lastX) / dt - vx);
+            vy += SMOOTHING * ((double) (mapY - lastY) / dt - vy);
+        }
+        lastX = mapX;
+        lastY = mapY;
+        lastTime = when;
+    }
+
+    /**
+     * Called when the map is flung, with the distance it will glide before it stops.
+     */
+    void onFling(int mapX, int mapY, double dx, double dy) {
+        prefetchAhead(mapX, mapY, dx, dy);
+    }
+
+    void onPanEnd() {
+        vx = vy = 0;
+        lastTime = -1;
+    }
+
+    /**
+     * Called when a zoom animation starts.
+     * @param pivot - the zoom pivot in panel coordinates
+     * @param zoom - the zoom level to prefetch around the pivot
+     */
+    void onZoom(Point pivot, int zoom) {
+        TileServer tileServer = mapPanel.getTileServer();
+        if (zoom < 1 || zoom > tileServer.getMaxZoom())
+            return;
+        mapPanel.getTileLoader().cancelPrefetch();
+        lastZoom = -1;
+        Point mapPosition = mapPanel.getMapPosition();
+        int shift = zoom - mapPanel.getZoom();
+        long px = mapPosition.x + pivot.x;
+        long py = mapPosition.y + pivot.y;
+        px = shift >= 0 ? px << shift : px >> -shift;
+        py = shift >= 0 ? py << shift : py >> -shift;
+        int tx = (int) (px / MapPanel.TILE_SIZE);
+        int ty = (int) (py / MapPanel.TILE_SIZE);
+        prefetch(tileServer, zoom, tx - PIVOT_RADIUS, ty - PIVOT_RADIUS, tx + PIVOT_RADIUS, ty + PIVOT_RADIUS, 0, -1, 0, -1);
+    }
+
+    private void prefetchAhead(int mapX, int mapY, double dx, double dy) {
+        int width = mapPanel.getWidth();
+        int height = mapPanel.getHeight();
+        int zoom = mapPanel.getZoom();
+        // tiles the painter requests itself
+        int vx0 = floorDiv(mapX, MapPanel.TILE_SIZE);
+        int vy0 = floorDiv(mapY, MapPanel.TILE_SIZE);
+        int vx1 = floorDiv(mapX + width - 1, MapPanel.TILE_SIZE);
+        int vy1 = floorDiv(mapY + height - 1, MapPanel.TILE_SIZE);
+        // the viewport swept along the displacement, plus the ring
+        int x0 = floorDiv(mapX + (int) Math.min(0, dx), MapPanel.TILE_SIZE) - RING;
+        int y0 = floorDiv(mapY + (int) Math.min(0, dy), MapPanel.TILE_SIZE) - RING;
+        int x1 = floorDiv(mapX + width - 1 + (int) Math.max(0, dx), MapPanel.TILE_SIZE) + RING;
+        int y1 = floorDiv(mapY + height - 1 + (int) Math.max(0, dy), MapPanel.TILE_SIZE) + RING;
+        if (zoom == lastZoom && x0 == lastX0 && y0 == lastY0 && x1 == lastX1 && y1 == lastY1)
+            return;
+        lastZoom = zoom;
+        lastX0 = x0;
+        lastY0 = y0;
+        lastX1 = x1;
+        lastY1 = y1;
+        prefetch(mapPanel.getTileServer(), zoom, x0, y0, x1, y1, vx0, vx1, vy0, vy1);
+    }
+
+    /**
+     * Queue the tiles of a range, skipping the excluded range and tiles outside the map.
+     */
+    private void prefetch(TileServer tileServer, int zoom, int x0, int y0, int x1, int y1,
+            int exX0, int exX1, int exY0, int exY1) {
+        int last = (1 << zoom) - 1;
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(last, x1);
+        y1 = Math.min(last, y1);
+        TileCache cache = mapPanel.getCache();
+        TileLoader loader = mapPanel.getTileLoader();
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                if (x >= exX0 && x <= exX1 && y >= exY0 && y <= exY1)
+                    continue;
+                if (!cache.contains(tileServer, x, y, zoom))
+                    loader.prefetch(tileServer, x, y, zoom);
+            }
+        }
+    }
+
+    private static int floorDiv(int a, int b) {
+        return (int) Math.floor((double) a / b);
+    }
+}
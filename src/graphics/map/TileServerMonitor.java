@@ -0,0 +1,228 @@
+package graphics.map;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Keeps track of the health of the tile servers in the background.
+ * <p>
+ * Every server is probed periodically by downloading one tile, and the TileLoader reports the outcome
+ * of every real tile fetch as well. From these samples the monitor keeps a moving average of the latency
+ * and of the error rate of each server. A server is marked broken after {@link #FAILURES_TO_BREAK}
+ * failures in a row, or after a single failed probe if it never answered, and marked recovered after
+ * its next success. Listeners are told about both on the event dispatch thread.
+ */
+public final class TileServerMonitor {
+
+    private static final Logger log = Logger.getLogger(TileServerMonitor.class.getName());
+
+    public static final long DEFAULT_PROBE_INTERVAL_MS = 60000;
+
+    private static final int FAILURES_TO_BREAK = 2;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    private static final double SMOOTHING = 0.2;
+
+    private static TileServerMonitor defaultMonitor;
+
+    /**
+     * Notified on the event dispatch thread when a server is marked broken or recovered.
+     */
+    public interface Listener {
+        void tileServerChanged(TileServer tileServer, boolean broken);
+    }
+
+    private static final class Health {
+        private double latency = -1;
+        private double errorRate;
+        private int failures;
+        private boolean answered;
+    }
+
+    private final List<TileServer> tileServers;
+    private final long probeInterval;
+    private final ConcurrentHashMap<TileServer, Health> health = new ConcurrentHashMap<TileServer, Health>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @return the monitor watching {@link MapPanel#getTileServers()}, shared by all map panels.
+     */
+    public static synchronized TileServerMonitor getDefault() {
+        if (defaultMonitor == null)
+            defaultMonitor = new TileServerMonitor(MapPanel.getTileServers(), DEFAULT_PROBE_INTERVAL_MS);
+        return defaultMonitor;
+    }
+
+    /**
+     * @param tileServers - the servers to probe, read again every round so servers can be added later
+     * @param probeInterval - milliseconds between two probes of the same server
+     */
+    public TileServerMonitor(List<TileServer> tileServers, long probeInterval) {
+        this.tileServers = tileServers;
+        this.probeInterval = probeInterval;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start probing in the background, the first round right away. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (executor != null)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TileServerMonitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probeAll();
+            }
+        }, 0, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Probe every server once, on the calling thread.
+     */
+    public void probeAll() {
+        for (TileServer tileServer : tileServers) {
+            if (tileServer.getPack() == null)
+                probe(tileServer);
+        }
+    }
+
+    /**
+     * Probe one server by downloading one of its tiles, on the calling thread.
+     * @return true if the server answered with a tile.
+     */
+    public boolean probe(TileServer tileServer) {
+        String url = MapPanel.getTileString(tileServer, 1, 1, 1);
+        long t0 = System.nanoTime();
+        boolean success;
+        try {
+            URLConnection connection = new URL(url).openConnection();
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            if (connection instanceof HttpURLConnection && ((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("http status " + ((HttpURLConnection) connection).getResponseCode());
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // drain, so the connection can be reused
+                }
+            } finally {
+                in.close();
+            }
+            success = true;
+        } catch (IOException e) {
+            log.log(Level.FINE, "probe of tileserver " + url + " failed", e);
+            success = false;
+        }
+        record(tileServer, (System.nanoTime() - t0) / 1000000, success, true);
+        return success;
+    }
+
+    /**
+     * Add the outcome of a tile fetch to the statistics of a server.
+     * @param latency - milliseconds the fetch took
+     */
+    public void record(TileServer tileServer, long latency, boolean success) {
+        record(tileServer, latency, success, false);
+    }
+
+    private void record(TileServer tileServer, long latency, boolean success, boolean probe) {
+        Health h = health(tileServer);
+        Boolean changed = null;
+        synchronized (h) {
+            h.errorRate += SMOOTHING * ((success ? 0 : 1) - h.errorRate);
+            if (success) {
+                h.latency = h.latency < 0 ? latency : h.latency + SMOOTHING * (latency - h.latency);
+                h.failures = 0;
+                h.answered = true;
+                if (tileServer.isBroken())
+                    changed = Boolean.FALSE;
+            } else {
+                ++h.failures;
+                if (!tileServer.isBroken() && (h.failures >= FAILURES_TO_BREAK || probe && !h.answered))
+                    changed = Boolean.TRUE;
+            }
+            if (changed != null)
+                tileServer.setBroken(changed);
+        }
+        if (changed != null) {
+            log.log(changed ? Level.WARNING : Level.INFO, "tileserver " + tileServer + (changed ? " is broken" : " recovered"));
+            fireChanged(tileServer, changed);
+        }
+    }
+
+    /**
+     * @return the average latency of a server in milliseconds, or -1 if it never answered.
+     */
+    public double getLatency(TileServer tileServer) {
+        Health h = health(tileServer);
+        synchronized (h) {
+            return h.latency;
+        }
+    }
+
+    /**
+     * @return the recent fraction of failed requests to a server, between 0 and 1.
+     */
+    public double getErrorRate(TileServer tileServer) {
+        Health h = health(tileServer);
+        synchronized (h) {
+            return h.errorRate;
+        }
+    }
+
+    private Health health(TileServer tileServer) {
+        Health h = health.get(tileServer);
+        if (h == null) {
+            health.putIfAbsent(tileServer, new Health());
+            h = health.get(tileServer);
+        }
+        return h;
+    }
+
+    private void fireChanged(final TileServer tileServer, final boolean broken) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                for (Listener listener : listeners)
+                    listener.tileServerChanged(tileServer, broken);
+            }
+        });
+    }
+}
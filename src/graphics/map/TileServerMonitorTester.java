@@ -0,0 +1,101 @@
+package graphics.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * Walks a {@link TileServerMonitor} through a healthy, a failing and a recovered tile server, served by a
+ * stub http server on the loopback interface, and checks the state of the server and the listener
+ * callbacks at every step. Exits with status 1 if a check fails.
+ */
+public class TileServerMonitorTester {
+
+    private static final byte[] TILE = new byte[] { (byte) 0x89, 'P', 'N', 'G' };
+
+    private static volatile boolean healthy = true;
+    private static int failed;
+
+    public static void main(String[] args) throws Exception {
+        HttpServer stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stub.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getRequestBody().close();
+                if (healthy) {
+                    exchange.sendResponseHeaders(200, TILE.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(TILE);
+                    out.close();
+                } else {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                }
+            }
+        });
+        stub.start();
+        try {
+            String url = "http://127.0.0.1:" + stub.getAddress().getPort() + "/";
+            run(stubServer(url), stubServer(url));
+        } finally {
+            stub.stop(0);
+        }
+        System.out.println(failed == 0 ? "all checks passed" : failed + " checks failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static TileServer stubServer(String url) {
+        return new TileServer("stub", url, new TileUrlTemplate(url + "{z}/{x}/{y}.png"), 18, MapPanel.TILE_SIZE, 0, null);
+    }
+
+    private static void run(TileServer tileServer, TileServer neverAnswered) throws InterruptedException {
+        TileServerMonitor monitor = new TileServerMonitor(Collections.singletonList(tileServer), TileServerMonitor.DEFAULT_PROBE_INTERVAL_MS);
+        final BlockingQueue<Boolean> changes = new LinkedBlockingQueue<Boolean>();
+        monitor.addListener(new TileServerMonitor.Listener() {
+            public void tileServerChanged(TileServer tileServer, boolean broken) {
+                changes.add(broken);
+            }
+        });
+
+        healthy = true;
+        check(monitor.probe(tileServer), "a healthy server answers the probe");
+        check(!tileServer.isBroken(), "a healthy server is not broken");
+        check(monitor.getLatency(tileServer) >= 0, "the latency of a healthy server is measured");
+        check(changes.poll(200, TimeUnit.MILLISECONDS) == null, "a healthy server is not reported");
+
+        healthy = false;
+        check(!monitor.probe(tileServer), "a failing server fails the probe");
+        check(!tileServer.isBroken(), "one failure does not break a server that answered before");
+        monitor.probe(tileServer);
+        check(tileServer.isBroken(), "a second failure in a row breaks the server");
+        check(Boolean.TRUE.equals(changes.poll(5, TimeUnit.SECONDS)), "the listener is told the server broke");
+        check(monitor.getErrorRate(tileServer) > 0, "failures raise the error rate");
+        monitor.probe(tileServer);
+        check(changes.poll(200, TimeUnit.MILLISECONDS) == null, "a broken server is reported only once");
+
+        healthy = true;
+        check(monitor.probe(tileServer), "a recovered server answers the probe");
+        check(!tileServer.isBroken(), "a recovered server is no longer broken");
+        check(Boolean.FALSE.equals(changes.poll(5, TimeUnit.SECONDS)), "the listener is told the server recovered");
+
+        healthy = false;
+        check(!monitor.probe(neverAnswered), "a server that never answered fails the probe");
+        check(neverAnswered.isBroken(), "a server that never answered is broken after one failed probe");
+        check(Boolean.TRUE.equals(changes.poll(5, TimeUnit.SECONDS)), "the listener is told it broke");
+    }
+
+    private static void check(boolean condition, String description) {
+        System.out.println((condition ? "ok     " : "FAILED ") + description);
+        if (!condition)
+            ++failed;
+    }
+}
@@ -0,0 +1,162 @@
+package graphics.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import graphics.map.MapPanel.TileServer;
+
+/**
+ * The tile servers the map can show, defined in a properties file.
+ * <p>
+ * The servers shipped with the program are defined in <code>tileservers.properties</code> next to this
+ * class, which also describes the format. A file <code>~/.airplane/tileservers.properties</code> replaces
+ * them. Every definition names the url scheme of its server, or gives a url template of its own, which
+ * is compiled into a {@link TileUrlTemplate} when the file is read. A definition that can not be used is
+ * skipped with a warning.
+ */
+public final class TileServerRegistry {
+
+    private static final Logger log = Logger.getLogger(TileServerRegistry.class.getName());
+
+    static final String RESOURCE = "tileservers.properties";
+
+    private static final int DEFAULT_MAX_ZOOM = 18;
+    private static final long DEFAULT_CACHE_EXPIRY_DAYS = 7;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private static TileServerRegistry defaultRegistry;
+
+    private final List<TileServer> tileServers = new CopyOnWriteArrayList<TileServer>();
+
+    /**
+     * @return the registry shared by all map panels, read from the user's file or else the shipped one.
+     */
+    public static synchronized TileServerRegistry getDefault() {
+        if (defaultRegistry == null) {
+            File file = new File(new File(System.getProperty("user.home"), ".airplane"), RESOURCE);
+            if (file.isFile()) {
+                try {
+                    defaultRegistry = load(new FileInputStream(file));
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "can not read " + file + ", using the shipped tile servers", e);
+                }
+                if (defaultRegistry != null && defaultRegistry.tileServers.isEmpty()) {
+                    log.log(Level.WARNING, file + " defines no usable tile server, using the shipped ones");
+                    defaultRegistry = null;
+                }
+            }
+            if (defaultRegistry == null) {
+                InputStream in = TileServerRegistry.class.getResourceAsStream(RESOURCE);
+                if (in == null)
+                    throw new IllegalStateException(RESOURCE + " is missing from the classpath");
+                try {
+                    defaultRegistry = load(in);
+                } catch (IOException e) {
+                    throw new IllegalStateException("can not read " + RESOURCE, e);
+                }
+            }
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Read the definitions of tile servers and close the stream.
+     */
+    public static TileServerRegistry load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return load(properties);
+    }
+
+    public static TileServerRegistry load(Properties properties) {
+        TileServerRegistry registry = new TileServerRegistry();
+        for (String id : properties.getProperty("servers", "").split(",")) {
+            id = id.trim();
+            if (id.isEmpty())
+                continue;
+            try {
+                registry.add(parse(id, properties));
+            } catch (IllegalArgumentException e) {
+                log.log(Level.WARNING, "skipping tile server " + id + ": " + e.getMessage());
+            }
+        }
+        return registry;
+    }
+
+    private static TileServer parse(String id, Properties properties) {
+        String url = properties.getProperty(id + ".url");
+        if (url == null)
+            throw new IllegalArgumentException("no url");
+        String template = properties.getProperty(id + ".template");
+        if (template == null)
+            template = url + schemeSuffix(properties.getProperty(id + ".scheme", "xyz").trim());
+        int tileSize = intProperty(properties, id + ".tileSize", MapPanel.TILE_SIZE);
+        if (tileSize != MapPanel.TILE_SIZE)
+            throw new IllegalArgumentException("tiles of " + tileSize + " pixels, only " + MapPanel.TILE_SIZE + " is supported");
+        int maxZoom = intProperty(properties, id + ".maxZoom", DEFAULT_MAX_ZOOM);
+        if (maxZoom < 0 || maxZoom > Projection.MAX_ZOOM)
+            throw new IllegalArgumentException("max zoom " + maxZoom + " out of range");
+        long cacheExpiry = intProperty(properties, id + ".cacheExpiryDays", (int) DEFAULT_CACHE_EXPIRY_DAYS) * DAY_MS;
+        return new TileServer(properties.getProperty(id + ".name", url).trim(), url, new TileUrlTemplate(template),
+                maxZoom, tileSize, cacheExpiry, null);
+    }
+
+    private static String schemeSuffix(String scheme) {
+        if (scheme.equals("xyz"))
+            return "{z}/{x}/{y}.png";
+        if (scheme.equals("tms"))
+            return "{z}/{x}/{-y}.png";
+        if (scheme.equals("query"))
+            return "&zoom={z}&x={x}&y={y}";
+        throw new IllegalArgumentException("unknown url scheme " + scheme);
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * @return the registered servers, in the order they were added.
+     */
+    public List<TileServer> getTileServers() {
+        return Collections.unmodifiableList(tileServers);
+    }
+
+    /**
+     * Register a server, unless it is registered already.
+     */
+    public void add(TileServer tileServer) {
+        if (!tileServers.contains(tileServer))
+            tileServers.add(tileServer);
+    }
+
+    /**
+     * @return the server with the given name or url, or null.
+     */
+    public TileServer find(String nameOrUrl) {
+        for (TileServer tileServer : tileServers) {
+            if (tileServer.getName().equals(nameOrUrl) || tileServer.getURL().equals(nameOrUrl))
+                return tileServer;
+        }
+        return null;
+    }
+}
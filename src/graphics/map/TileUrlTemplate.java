@@ -0,0 +1,113 @@
+package graphics.map;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The url of a tile, compiled from a template like <code>http://tile.openstreetmap.org/{z}/{x}/{y}.png</code>.
+ * <p>
+ * The placeholders are {z}, {x} and {y}, and {-y} for the row counted from the bottom of the map as
+ * TMS servers do. The template is split into its literal parts and placeholders once, so expanding it
+ * only appends those parts to a StringBuilder that every thread reuses, without parsing the template or
+ * concatenating intermediate strings.
+ */
+final class TileUrlTemplate {
+
+    private static final int LITERAL = 0, Z = 1, X = 2, Y = 3, FLIPPED_Y = 4;
+    private static final String[] PLACEHOLDERS = { null, "{z}", "{x}", "{y}", "{-y}" };
+
+    private static final ThreadLocal<StringBuilder> builder = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    private final String template;
+    // parallel arrays, the literal is null for a placeholder
+    private final int[] kinds;
+    private final String[] literals;
+
+    /**
+     * @throws IllegalArgumentException if the template lacks one of the coordinates.
+     */
+    TileUrlTemplate(String template) {
+        this.template = template;
+        List<Integer> kinds = new ArrayList<Integer>();
+        List<String> literals = new ArrayList<String>();
+        boolean hasX = false, hasY = false, hasZ = false;
+        int start = 0;
+        int i = 0;
+        while (i < template.length()) {
+            int kind = template.charAt(i) == '{' ? placeholder(template, i) : LITERAL;
+            if (kind == LITERAL) {
+                ++i;
+                continue;
+            }
+            if (i > start) {
+                kinds.add(LITERAL);
+                literals.add(template.substring(start, i));
+            }
+            kinds.add(kind);
+            literals.add(null);
+            hasZ |= kind == Z;
+            hasX |= kind == X;
+            hasY |= kind == Y || kind == FLIPPED_Y;
+            i += PLACEHOLDERS[kind].length();
+            start = i;
+        }
+        if (start < template.length()) {
+            kinds.add(LITERAL);
+            literals.add(template.substring(start));
+        }
+        if (!hasX || !hasY || !hasZ)
+            throw new IllegalArgumentException("tile url template needs {z}, {x} and {y}: " + template);
+        this.kinds = new int[kinds.size()];
+        for (int k = 0; k < this.kinds.length; ++k)
+            this.kinds[k] = kinds.get(k);
+        this.literals = literals.toArray(new String[literals.size()]);
+    }
+
+    private static int placeholder(String template, int i) {
+        for (int kind = Z; kind < PLACEHOLDERS.length; ++kind) {
+            if (template.startsWith(PLACEHOLDERS[kind], i))
+                return kind;
+        }
+        return LITERAL;
+    }
+
+    /**
+     * @return the url of a tile.
+     */
+    String expand(int x, int y, int z) {
+        StringBuilder url = builder.get();
+        url.setLength(0);
+        appendTo(url, x, y, z);
+        return url.toString();
+    }
+
+    void appendTo(StringBuilder url, int x, int y, int z) {
+        for (int k = 0; k < kinds.length; ++k) {
+            switch (kinds[k]) {
+            case LITERAL:
+                url.append(literals[k]);
+                break;
+            case Z:
+                url.append(z);
+                break;
+            case X:
+                url.append(x);
+                break;
+            case Y:
+                url.append(y);
+                break;
+            default:
+                url.append((1 << z) - 1 - y);
+                break;
+            }
+        }
+    }
+
+    public String toString() {
+        return template;
+    }
+}
@@ -18,7 +18,7 @@ public class Player {
 
 	private String airlineName;
 	private int value;
-	private int cash;
+	private long cash; // a long, the simulation adds the profit of every leg for years
 	private ArrayList<Aircraft> aircrafts;
 	private ArrayList<Route> routes;
 
@@ -85,7 +85,7 @@ public class Player {
 		this.value += value;
 	}
 
-	public void changeCash(int cash) {
+	public void changeCash(long cash) {
 		this.cash += cash;
 	}
 
@@ -93,7 +93,7 @@ public class Player {
 		return this.value;
 	}
 
-	public int getCash() {
+	public long getCash() {
 		return this.cash;
 	}
 
@@ -0,0 +1,90 @@
+package simulation;
+
+import java.util.Arrays;
+
+/*
+ * A binary min-heap of events packed into longs.
+ *
+ * An event is its time in the high bits and the slot of its aircraft and its kind in the low bits, so events
+ * order by time, and events at the same time by slot. The heap holds the packed longs in one array: queueing
+ * an event allocates nothing and comparing two events is one comparison of primitives.
+ *
+ * */
+final class EventQueue {
+
+	static final int SLOT_BITS = 22;
+	static final int MAX_SLOTS = 1 << SLOT_BITS;
+	// the time is what is left of a long after the slot and the kind bit
+	static final long MAX_TIME = (1L << (63 - SLOT_BITS - 1)) - 1;
+
+	private long[] heap = new long[64];
+	private int size;
+
+	static long pack(long time, int slot, int kind) {
+		return time << (SLOT_BITS + 1) | (long) slot << 1 | kind;
+	}
+
+	static long time(long event) {
+		return event >>> (SLOT_BITS + 1);
+	}
+
+	static int slot(long event) {
+		return (int) (event >>> 1) & (MAX_SLOTS - 1);
+	}
+
+	static int kind(long event) {
+		return (int) event & 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void add(long event) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size * 2);
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			long p = heap[parent];
+			if (p <= event)
+				break;
+			heap[i] = p;
+			i = parent;
+		}
+		heap[i] = event;
+	}
+
+	/**
+	 * @return the earliest event, the queue must not be empty.
+	 */
+	long peek() {
+		return heap[0];
+	}
+
+	/**
+	 * @return the earliest event after removing it, the queue must not be empty.
+	 */
+	long poll() {
+		long first = heap[0];
+		long last = heap[--size];
+		int i = 0;
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			long c = heap[child];
+			if (child + 1 < size && heap[child + 1] < c)
+				c = heap[++child];
+			if (last <= c)
+				break;
+			heap[i] = c;
+			i = child;
+		}
+		heap[i] = last;
+		return first;
+	}
+}
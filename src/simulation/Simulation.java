@@ -0,0 +1,243 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import player.Player;
+import routes.Route;
+import aircrafts.Aircraft;
+
+/*
+ * Flies the aircraft of the players on their routes, as a discrete-event simulation in game minutes.
+ *
+ * An aircraft shuttles between the start and the end destination of its route: it departs, arrives after
+ * the flight time, earns the profit of the leg for its owner, and departs again after the turnaround. The
+ * departures and arrivals wait in a priority queue ordered by time, and advancing the simulation jumps from
+ * one event to the next, so nothing is polled and a quiet stretch of game time costs nothing. Every aircraft
+ * has exactly one event queued at any time.
+ *
+ * Without listeners the individual legs are not observed, and an aircraft departing flies every round of
+ * leg and turnaround that lands before the end of the advance in one step: its owner is paid for all of
+ * those legs at once and its next departure is queued after them. The cash, legs and queue at the end of
+ * the advance are the same as when every event fires, but each aircraft takes a few events per advance
+ * instead of one per leg, so years of tens of thousands of aircraft take well under a second.
+ *
+ * The flight time, turnaround and profit of an aircraft are computed by the Tariff once, when it is
+ * scheduled, and kept in arrays indexed by the slot of the aircraft, which is what an event refers to. An
+ * aircraft that changes route or tariff has to be removed and scheduled again. The simulation is not
+ * thread safe, advance it from one thread.
+ *
+ * */
+public class Simulation {
+
+	public static final long MINUTES_PER_HOUR = 60;
+	public static final long MINUTES_PER_DAY = 24 * MINUTES_PER_HOUR;
+	public static final long MINUTES_PER_YEAR = 365 * MINUTES_PER_DAY;
+
+	private static final int DEPARTURE = 0, ARRIVAL = 1;
+
+	private final Tariff tariff;
+	private final EventQueue events = new EventQueue();
+	private final IdentityHashMap<Aircraft, Integer> slots = new IdentityHashMap<Aircraft, Integer>();
+	private final ArrayList<SimulationListener> listeners = new ArrayList<SimulationListener>();
+
+	// per slot, a null aircraft marks a slot that is free or waiting for its last event
+	private Aircraft[] aircrafts = new Aircraft[64];
+	private Player[] owners = new Player[64];
+	private int[] flightMinutes = new int[64];
+	private int[] turnaroundMinutes = new int[64];
+	private int[] legProfits = new int[64];
+	private boolean[] fromStart = new boolean[64];
+	private int slotCount;
+	// slots of removed aircraft whose last event has fired
+	private int[] freeSlots = new int[16];
+	private int freeCount;
+
+	private long time;
+	private long legs;
+
+	public Simulation() {
+		this(Tariff.DEFAULT);
+	}
+
+	public Simulation(Tariff tariff) {
+		this.tariff = tariff;
+	}
+
+	/**
+	 * @return the game time in minutes since the simulation started.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the number of legs flown to the end.
+	 */
+	public long getCompletedLegs() {
+		return legs;
+	}
+
+	/**
+	 * @return the number of aircraft flying.
+	 */
+	public int getAircraftCount() {
+		return slots.size();
+	}
+
+	/**
+	 * @return the time of the next departure or arrival, or -1 if nothing is scheduled.
+	 */
+	public long getNextEventTime() {
+		return events.isEmpty() ? -1 : EventQueue.time(events.peek());
+	}
+
+	public void addListener(SimulationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(SimulationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Put an aircraft on its route, departing from the start destination.
+	 * @param owner - the player the profit of every leg goes to
+	 * @param departure - the game time of the first departure, not before the current time
+	 * @throws IllegalArgumentException if the aircraft has no route, is already flying, or can not fly the
+	 * range of its route
+	 */
+	public void schedule(Player owner, Aircraft aircraft, long departure) {
+		Route route = aircraft.getRoute();
+		if (route == null)
+			throw new IllegalArgumentException(aircraft + " is not assigned to a route");
+		if (slots.containsKey(aircraft))
+			throw new IllegalArgumentException(aircraft + " is already scheduled");
+		if (route.getRange() > aircraft.getFlightRange())
+			throw new IllegalArgumentException("the route " + route + " is longer than the range of " + aircraft);
+		if (departure < time || departure > EventQueue.MAX_TIME)
+			throw new IllegalArgumentException("departure " + departure + " is not between " + time + " and " + EventQueue.MAX_TIME);
+		int slot = allocateSlot();
+		aircrafts[slot] = aircraft;
+		owners[slot] = owner;
+		flightMinutes[slot] = tariff.getFlightMinutes(aircraft, route);
+		turnaroundMinutes[slot] = tariff.getTurnaroundMinutes(aircraft);
+		legProfits[slot] = tariff.getLegProfit(aircraft, route);
+		fromStart[slot] = true;
+		slots.put(aircraft, slot);
+		events.add(EventQueue.pack(departure, slot, DEPARTURE));
+	}
+
+	/**
+	 * Take an aircraft out of the simulation, for example when it is sold. A leg in progress earns nothing.
+	 * @return false if the aircraft was not scheduled
+	 */
+	public boolean remove(Aircraft aircraft) {
+		Integer slot = slots.remove(aircraft);
+		if (slot == null)
+			return false;
+		// the slot is freed when its queued event fires
+		aircrafts[slot] = null;
+		owners[slot] = null;
+		return true;
+	}
+
+	/**
+	 * Fly every departure and arrival up to and including the given time, then set the clock to it.
+	 */
+	public void advanceTo(long until) {
+		if (until < time)
+			throw new IllegalArgumentException("can not go back from " + time + " to " + until);
+		boolean notify = !listeners.isEmpty();
+		while (!events.isEmpty() && EventQueue.time(events.peek()) <= until) {
+			long event = events.poll();
+			long now = EventQueue.time(event);
+			int slot = EventQueue.slot(event);
+			time = now;
+			Aircraft aircraft = aircrafts[slot];
+			if (aircraft == null) {
+				release(slot);
+				continue;
+			}
+			if (EventQueue.kind(event) == DEPARTURE) {
+				if (!notify && flyRounds(slot, now, until))
+					continue;
+				events.add(EventQueue.pack(now + flightMinutes[slot], slot, ARRIVAL));
+				if (notify)
+					fireDeparted(aircraft, fromStart[slot], now);
+			} else {
+				int profit = legProfits[slot];
+				owners[slot].changeCash(profit);
+				++legs;
+				boolean leg = fromStart[slot];
+				fromStart[slot] = !leg;
+				events.add(EventQueue.pack(now + turnaroundMinutes[slot], slot, DEPARTURE));
+				if (notify)
+					fireArrived(aircraft, leg, now, profit);
+			}
+		}
+		time = until;
+	}
+
+	/**
+	 * Fast-forward the game clock.
+	 */
+	public void advanceBy(long minutes) {
+		advanceTo(time + minutes);
+	}
+
+	/**
+	 * Fly the rounds of an aircraft departing now whose legs land by the given time, and queue its
+	 * departure after them.
+	 * @return false if not even the first leg lands in time
+	 */
+	private boolean flyRounds(int slot, long now, long until) {
+		long flight = flightMinutes[slot];
+		if (now + flight > until)
+			return false;
+		long round = flight + turnaroundMinutes[slot];
+		long rounds = (until - now - flight) / round + 1;
+		owners[slot].changeCash(rounds * legProfits[slot]);
+		legs += rounds;
+		if ((rounds & 1) != 0)
+			fromStart[slot] = !fromStart[slot];
+		events.add(EventQueue.pack(now + rounds * round, slot, DEPARTURE));
+		return true;
+	}
+
+	private int allocateSlot() {
+		if (freeCount > 0)
+			return freeSlots[--freeCount];
+		if (slotCount == EventQueue.MAX_SLOTS)
+			throw new IllegalStateException("more than " + EventQueue.MAX_SLOTS + " aircraft");
+		if (slotCount == aircrafts.length) {
+			int length = Math.min(slotCount * 2, EventQueue.MAX_SLOTS);
+			aircrafts = Arrays.copyOf(aircrafts, length);
+			owners = Arrays.copyOf(owners, length);
+			flightMinutes = Arrays.copyOf(flightMinutes, length);
+			turnaroundMinutes = Arrays.copyOf(turnaroundMinutes, length);
+			legProfits = Arrays.copyOf(legProfits, length);
+			fromStart = Arrays.copyOf(fromStart, length);
+		}
+		return slotCount++;
+	}
+
+	private void release(int slot) {
+		if (freeCount == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		freeSlots[freeCount++] = slot;
+	}
+
+	private void fireDeparted(Aircraft aircraft, boolean fromStart, long now) {
+		Route route = aircraft.getRoute();
+		for (int i = 0; i < listeners.size(); ++i)
+			listeners.get(i).departed(aircraft, route, fromStart, now);
+	}
+
+	private void fireArrived(Aircraft aircraft, boolean fromStart, long now, int profit) {
+		Route route = aircraft.getRoute();
+		for (int i = 0; i < listeners.size(); ++i)
+			listeners.get(i).arrived(aircraft, route, fromStart, now, profit);
+	}
+}
@@ -0,0 +1,21 @@
+package simulation;
+
+import aircrafts.Aircraft;
+import routes.Route;
+
+/*
+ * Told about every leg the simulation flies, on the thread advancing it.
+ *
+ * */
+public interface SimulationListener {
+
+	/**
+	 * @param fromStart - true if the leg goes from the start to the end destination of the route
+	 */
+	void departed(Aircraft aircraft, Route route, boolean fromStart, long time);
+
+	/**
+	 * @param profit - what the leg earned its owner, already added to the cash of the player
+	 */
+	void arrived(Aircraft aircraft, Route route, boolean fromStart, long time, int profit);
+}
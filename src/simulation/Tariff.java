@@ -0,0 +1,73 @@
+package simulation;
+
+import aircrafts.Aircraft;
+import aircrafts.CargoPlane;
+import aircrafts.PassengerPlane;
+import routes.Route;
+
+/*
+ * The prices and times a leg of a route is computed from.
+ *
+ * A leg takes the range of the route at the cruise speed of the aircraft, distances in km and speeds in km/h.
+ * It earns a fare per km for every seat or unit of cargo the load factor fills, and costs the fuel consumption
+ * of the aircraft times the fuel price per km. Override the methods for a different economy.
+ *
+ * */
+public class Tariff {
+
+	public static final Tariff DEFAULT = new Tariff(0.12, 0.05, 0.75, 1.0, 45);
+
+	private final double passengerFare;
+	private final double cargoRate;
+	private final double loadFactor;
+	private final double fuelPrice;
+	private final int turnaroundMinutes;
+
+	/**
+	 * @param passengerFare - the fare of a passenger per km
+	 * @param cargoRate - the rate of a unit of cargo per km
+	 * @param loadFactor - the share of the seats or cargo load that is filled, 0 to 1
+	 * @param fuelPrice - the price of a unit of fuel consumption per km
+	 * @param turnaroundMinutes - the time an aircraft spends at a destination between legs
+	 */
+	public Tariff(double passengerFare, double cargoRate, double loadFactor, double fuelPrice, int turnaroundMinutes) {
+		if (loadFactor < 0 || loadFactor > 1)
+			throw new IllegalArgumentException("load factor " + loadFactor + " is not between 0 and 1");
+		if (turnaroundMinutes < 0)
+			throw new IllegalArgumentException("negative turnaround " + turnaroundMinutes);
+		this.passengerFare = passengerFare;
+		this.cargoRate = cargoRate;
+		this.loadFactor = loadFactor;
+		this.fuelPrice = fuelPrice;
+		this.turnaroundMinutes = turnaroundMinutes;
+	}
+
+	/**
+	 * @return the minutes the aircraft is in the air on one leg of the route, at least 1.
+	 */
+	public int getFlightMinutes(Aircraft aircraft, Route route) {
+		if (aircraft.getCruiseSpeed() <= 0)
+			throw new IllegalArgumentException(aircraft + " has no cruise speed");
+		return Math.max(1, (int) Math.ceil(route.getRange() * 60.0 / aircraft.getCruiseSpeed()));
+	}
+
+	/**
+	 * @return the minutes the aircraft spends on the ground before its next leg.
+	 */
+	public int getTurnaroundMinutes(Aircraft aircraft) {
+		return turnaroundMinutes;
+	}
+
+	/**
+	 * @return the revenue of one leg of the route less its fuel cost, negative for a loss.
+	 */
+	public int getLegProfit(Aircraft aircraft, Route route) {
+		double revenue = 0;
+		if (aircraft instanceof PassengerPlane)
+			revenue = ((PassengerPlane) aircraft).getMaxPassengers() * loadFactor * passengerFare * route.getRange();
+		else if (aircraft instanceof CargoPlane)
+			revenue = ((CargoPlane) aircraft).getMaxCargoLoad() * loadFactor * cargoRate * route.getRange();
+		double fuel = aircraft.getFuelConsumption() * fuelPrice * route.getRange();
+		return (int) Math.round(revenue - fuel);
+	}
+}